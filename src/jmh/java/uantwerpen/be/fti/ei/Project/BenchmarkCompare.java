@@ -0,0 +1,96 @@
+package uantwerpen.be.fti.ei.Project;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class BenchmarkCompare {
+    // prints a JMH JSON result next to the committed baseline, one line per benchmark + params.
+    // A change only counts when it is larger than the threshold and than both runs' error bars together.
+    // Usage: BenchmarkCompare <baseline.json> <result.json> [threshold %] [--fail-on-regression]
+    private record Score(String mode, double score, double error, String unit) {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkCompare <baseline.json> <result.json> [threshold %] [--fail-on-regression]");
+            System.exit(2);
+        }
+        Path baselineFile = Paths.get(args[0]), resultFile = Paths.get(args[1]);
+        double threshold = args.length > 2 && !args[2].startsWith("--") ? Double.parseDouble(args[2]) : 10.0;
+        boolean failOnRegression = args[args.length - 1].equals("--fail-on-regression");
+        if (!Files.exists(resultFile)) {
+            System.err.println("No benchmark result at " + resultFile);
+            System.exit(2);
+        }
+        if (!Files.exists(baselineFile)) {
+            System.out.println("No baseline at " + baselineFile + " yet; copy " + resultFile + " there to start one.");
+            return;
+        }
+
+        Map<String, Score> baseline = load(baselineFile), result = load(resultFile);
+        int regressions = 0;
+        System.out.printf(Locale.ROOT, "%-90s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Score> e : result.entrySet()) {
+            Score now = e.getValue(), before = baseline.get(e.getKey());
+            if (before == null || !before.unit().equals(now.unit())) {
+                System.out.printf(Locale.ROOT, "%-90s %14s %14s %9s%n", e.getKey(), "-", format(now), "new");
+                continue;
+            }
+            // time per op: lower is better; throughput: higher is better
+            boolean higherIsBetter = now.mode().equals("thrpt");
+            double change = (now.score() - before.score()) / before.score() * 100;
+            double worse = higherIsBetter ? -change : change;
+            boolean significant = Math.abs(now.score() - before.score()) > before.error() + now.error();
+            String verdict = "";
+            if (significant && worse > threshold) {
+                verdict = "  REGRESSION";
+                regressions++;
+            } else if (significant && worse < -threshold) {
+                verdict = "  improved";
+            }
+            System.out.printf(Locale.ROOT, "%-90s %14s %14s %+8.1f%%%s%n",
+                    e.getKey(), format(before), format(now), change, verdict);
+        }
+        baseline.keySet().stream().filter(k -> !result.containsKey(k))
+                .forEach(k -> System.out.printf(Locale.ROOT, "%-90s %14s %14s %9s%n", k, format(baseline.get(k)), "-", "not run"));
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        if (failOnRegression && regressions > 0) System.exit(1);
+    }
+
+    private static Map<String, Score> load(Path file) throws IOException {
+        Map<String, Score> scores = new TreeMap<>();
+        try (Reader r = Files.newBufferedReader(file)) {
+            JsonArray runs = JsonParser.parseReader(r).getAsJsonArray();
+            for (JsonElement run : runs) {
+                JsonObject o = run.getAsJsonObject();
+                StringBuilder key = new StringBuilder(o.get("benchmark").getAsString()
+                        .replace("uantwerpen.be.fti.ei.Project.", ""));
+                if (o.has("params")) {
+                    Map<String, String> params = new TreeMap<>();
+                    o.getAsJsonObject("params").entrySet().forEach(p -> params.put(p.getKey(), p.getValue().getAsString()));
+                    params.forEach((name, value) -> key.append(' ').append(name).append('=').append(value));
+                }
+                JsonObject metric = o.getAsJsonObject("primaryMetric");
+                double error = metric.get("scoreError").isJsonPrimitive()
+                        && metric.get("scoreError").getAsJsonPrimitive().isNumber() ? metric.get("scoreError").getAsDouble() : 0;
+                scores.put(key.toString(), new Score(o.get("mode").getAsString(),
+                        metric.get("score").getAsDouble(), error, metric.get("scoreUnit").getAsString()));
+            }
+        }
+        return scores;
+    }
+
+    private static String format(Score s) {
+        return String.format(Locale.ROOT, "%.3f %s", s.score(), s.unit());
+    }
+}
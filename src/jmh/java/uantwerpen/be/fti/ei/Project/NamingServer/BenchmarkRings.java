@@ -0,0 +1,29 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.TreeMap;
+
+final class BenchmarkRings {
+    // node maps like the naming server keeps them: keyed by the hash of the node name, one address per node
+    private BenchmarkRings() {}
+
+    static TreeMap<Long, Node> nodeMap(int nodes) {
+        TreeMap<Long, Node> map = new TreeMap<>();
+        for (int i = 0; map.size() < nodes; i++) {
+            String name = "node-" + i;
+            long hash = HashingUtil.generateHash(name);
+            if (map.containsKey(hash)) continue;
+            Node node = new Node();
+            node.setCurrentID(hash);
+            node.setNodeName(name);
+            node.setIpAddress(ipOf(map.size()));
+            map.put(hash, node);
+        }
+        return map;
+    }
+
+    static String ipOf(int index) {
+        return "10." + (index >> 16 & 0xff) + "." + (index >> 8 & 0xff) + "." + (index & 0xff);
+    }
+}
@@ -0,0 +1,43 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import org.openjdk.jmh.annotations.*;
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class BoundedLoadBenchmark {
+    // placement with part of the nodes over the load bound: should cost the same as a plain lookup
+    @Param({"100", "10000"})
+    public int nodes;
+
+    @Param({"0", "10", "50"})
+    public int overloadedPercent;
+
+    private RingSnapshot ring;
+    private long[] fileHashes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        TreeMap<Long, Node> nodeMap = BenchmarkRings.nodeMap(nodes);
+        int i = 0;
+        for (Node node : nodeMap.values()) {
+            node.setOverloaded(i++ % 100 < overloadedPercent);
+        }
+        ring = RingSnapshot.of(nodeMap, 16, 1);
+        fileHashes = new long[4096];
+        for (i = 0; i < fileHashes.length; i++) fileHashes[i] = HashingUtil.generateHash("file-" + i + ".bin");
+    }
+
+    @Benchmark
+    public String findResponsibleNode() {
+        return ring.ownerOf(fileHashes[next++ & (fileHashes.length - 1)]);
+    }
+}
@@ -0,0 +1,61 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.*;
+
+public class HashSpread {
+    // how evenly each ring hash places the names we actually see, next to HashingBenchmark's speed:
+    //  - node collisions: Node-1..Node-9999 names that land on an occupied position (addNode refuses them)
+    //  - distinct: file positions out of the files hashed, equal positions always share an owner
+    //  - share max/min: largest and smallest part of the ring one node owns
+    //  - files max/mean: busiest node against the average
+    //  - drift: largest gap between a node's share of the files and its share of the ring,
+    //    the part of the imbalance that comes from the hash clustering names and not from the arcs
+    // Usage: HashSpread [nodes] [vnodes] [files]
+    private static final List<String> SHAPES = List.of("log-%04d", "documents/report-%d.txt");
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int vnodes = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        System.out.printf(Locale.ROOT, "%d nodes, %d vnodes, %d files per shape%n", nodes, vnodes, files);
+        System.out.printf(Locale.ROOT, "%-8s %-24s %10s %9s %10s %10s %10s %8s%n", "hash", "names", "node coll",
+                "distinct", "share max", "share min", "files max", "drift");
+
+        for (String name : List.of(LegacyHash.NAME, Murmur3Hash.NAME)) {
+            HashingUtil.use(name);
+            int collisions = 0;
+            Set<Long> taken = new HashSet<>();
+            for (int i = 1; i < 10000; i++) {
+                if (!taken.add(HashingUtil.generateHash("Node-" + i))) collisions++;
+            }
+
+            TreeMap<Long, Node> nodeMap = BenchmarkRings.nodeMap(nodes);
+            RingSnapshot ring = RingSnapshot.of(nodeMap, vnodes, 1);
+            Map<Long, Double> share = ring.ownership();
+            Map<String, Long> idOf = new HashMap<>();
+            nodeMap.forEach((id, node) -> idOf.put(node.getIpAddress(), id));
+
+            for (String shape : SHAPES) {
+                Set<Long> positions = new HashSet<>();
+                Map<String, Integer> perNode = new HashMap<>();
+                for (int i = 0; i < files; i++) {
+                    long hash = HashingUtil.generateHash(String.format(Locale.ROOT, shape, i));
+                    positions.add(hash);
+                    perNode.merge(ring.ownerOf(hash), 1, Integer::sum);
+                }
+                double mean = (double) files / nodes, drift = 0;
+                int busiest = 0;
+                for (Map.Entry<String, Long> e : idOf.entrySet()) {
+                    int count = perNode.getOrDefault(e.getKey(), 0);
+                    busiest = Math.max(busiest, count);
+                    drift = Math.max(drift, Math.abs((double) count / files - share.getOrDefault(e.getValue(), 0.0)));
+                }
+                System.out.printf(Locale.ROOT, "%-8s %-24s %10d %9d %9.2f%% %9.2f%% %10.2f %7.2f%%%n", name, shape,
+                        collisions, positions.size(), 100 * Collections.max(share.values()),
+                        100 * Collections.min(share.values()), busiest / mean, 100 * drift);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+    // placement hashes every file name and node name it sees, so this is on every lookup path.
+    // legacy rides on the hashCode String caches, so it only pays once per name; murmur3 always
+    // hashes the bytes. HashSpread reports how well each one spreads the same names.
+    @Param({"legacy", "murmur3"})
+    public String hash;
+
+    private HashStrategy strategy;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+        strategy = HashStrategy.named(hash);
+        names = new String[4096];
+        for (int i = 0; i < names.length; i++) names[i] = "documents/report-" + i + ".txt";
+    }
+
+    @Benchmark
+    public long generateHash() {
+        return strategy.hash(names[next++ & (names.length - 1)]);
+    }
+
+    // a name fresh off the wire, before anything cached its hashCode
+    @Benchmark
+    public long generateHashUncached() {
+        return strategy.hash(new String(names[next++ & (names.length - 1)]));
+    }
+}
@@ -0,0 +1,59 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import org.openjdk.jmh.annotations.*;
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RedistributeBenchmark {
+    // planning step of redistributeFiles: the catalog is placed on a ring of `nodes` nodes, then one
+    // more node joins. fullPass is the startup scan, joinedArcs only the arcs the new node took over.
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    @Param({"16"})
+    public int nodes;
+
+    private FileCatalog catalog;
+    private RingSnapshot grown;
+    private List<long[]> joinedArcs;
+
+    @Setup
+    public void setup() {
+        TreeMap<Long, Node> nodeMap = BenchmarkRings.nodeMap(nodes + 1);
+        Node joined = nodeMap.lastEntry().getValue();
+        nodeMap.remove(joined.getCurrentID());
+        RingSnapshot before = RingSnapshot.of(nodeMap, 1, 1);
+
+        catalog = new FileCatalog();
+        for (int i = 0; i < files; i++) {
+            String file = "file-" + i + ".bin";
+            catalog.add(before.ownerOf(HashingUtil.generateHash(file)), file, true);
+        }
+
+        nodeMap.put(joined.getCurrentID(), joined);
+        grown = RingSnapshot.of(nodeMap, 1, 2);
+        // the joined node took over (its predecessor, itself]
+        Long previous = nodeMap.lowerKey(joined.getCurrentID());
+        long from = previous != null ? previous : nodeMap.lastKey();
+        joinedArcs = List.of(new long[]{from, joined.getCurrentID()});
+    }
+
+    @Benchmark
+    public List<Rebalancer.Move> fullPass() {
+        return Rebalancer.plan(catalog, grown, List.of(new long[]{0, 0}), (ip, f) -> true);
+    }
+
+    @Benchmark
+    public List<Rebalancer.Move> joinedArcs() {
+        return Rebalancer.plan(catalog, grown, joinedArcs, (ip, f) -> true);
+    }
+}
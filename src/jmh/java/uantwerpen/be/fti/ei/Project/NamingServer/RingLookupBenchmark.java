@@ -0,0 +1,58 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class RingLookupBenchmark {
+    // findResponsibleNode and getNodeForReplication are thin wrappers around these snapshot lookups
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    @Param({"1", "16"})
+    public int vnodes;
+
+    private RingSnapshot ring;
+    private long[] fileHashes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        ring = RingSnapshot.of(BenchmarkRings.nodeMap(nodes), vnodes, 1);
+        fileHashes = new long[4096];
+        for (int i = 0; i < fileHashes.length; i++) fileHashes[i] = HashingUtil.generateHash("file-" + i + ".bin");
+    }
+
+    private long nextHash() {
+        return fileHashes[next++ & (fileHashes.length - 1)];
+    }
+
+    @Benchmark
+    public String findResponsibleNode() {
+        return ring.ownerOf(nextHash());
+    }
+
+    @Benchmark
+    public String getNodeForReplication() {
+        return ring.replicaOf(nextHash());
+    }
+
+    @Benchmark
+    public List<String> preferenceList() {
+        return ring.preferenceList(nextHash(), 3);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public RingSnapshot buildRing() {
+        return RingSnapshot.of(BenchmarkRings.nodeMap(nodes), vnodes, 2);
+    }
+}
@@ -0,0 +1,59 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FileReplicatorBenchmark {
+    // one file sent and received through the real protocol over loopback: pooled connection, chunk
+    // checksums, compression decision and the receiver writing it to disk. Random content does not
+    // compress, text does, so both codec paths are covered.
+    @Param({"65536", "16777216"})
+    public int size;
+
+    @Param({"random", "text"})
+    public String content;
+
+    private Path source;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Path work = Files.createTempDirectory("jmh-replication");
+        source = work.resolve("payload-" + size + "-" + content + ".bin");
+        byte[] data = new byte[size];
+        if (content.equals("random")) {
+            new Random(42).nextBytes(data);
+        } else {
+            byte[] line = "2026-01-01T00:00:00Z INFO replication finished for documents/report.txt\n".getBytes();
+            for (int i = 0; i < size; i++) data[i] = line[i % line.length];
+        }
+        Files.write(source, data);
+
+        FileReplicator.startFileReceiver(ReplicationProtocol.PORT, work.resolve("received").toString());
+        // the receiver binds on its own thread
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket("127.0.0.1", ReplicationProtocol.PORT)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("file receiver did not come up on port " + ReplicationProtocol.PORT);
+    }
+
+    @Benchmark
+    public void transfer() throws IOException {
+        FileReplicator.transferFile("127.0.0.1", "127.0.0.1", source.getFileName().toString(), source);
+    }
+}
@@ -0,0 +1,52 @@
+package uantwerpen.be.fti.ei.Project.storage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class JsonServiceBenchmark {
+    // the catalog snapshot the naming server writes on compaction and reads at startup.
+    // JsonService writes to the working directory; the jmh profile runs the benchmarks in target/jmh-work.
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private static final int NODES = 16;
+
+    private Map<String, Set<String>> byNode;
+    private Map<String, String> owners;
+
+    @Setup
+    public void setup() {
+        byNode = new TreeMap<>();
+        owners = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            String file = "documents/file-" + i + ".bin";
+            String ip = "10.0.0." + (i % NODES);
+            byNode.computeIfAbsent(ip, k -> new TreeSet<>()).add(file);
+            owners.put(file, ip);
+        }
+        JsonService.saveStoredFiles(byNode);
+        JsonService.saveFileOwners(owners);
+    }
+
+    @Benchmark
+    public boolean save() {
+        return JsonService.saveStoredFiles(byNode) & JsonService.saveFileOwners(owners);
+    }
+
+    @Benchmark
+    public int load() {
+        return JsonService.loadStoredFiles().size() + JsonService.loadFileOwners().size();
+    }
+}
@@ -1,5 +1,6 @@
 package uantwerpen.be.fti.ei.Project.Bootstrap;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -8,12 +9,18 @@ import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
+import uantwerpen.be.fti.ei.Project.Discovery.HeartbeatMonitor;
+import uantwerpen.be.fti.ei.Project.Discovery.LoadReporter;
 import uantwerpen.be.fti.ei.Project.Discovery.MulticastReceiver;
 import uantwerpen.be.fti.ei.Project.Discovery.MulticastSender;
+import uantwerpen.be.fti.ei.Project.Discovery.RingCache;
+import uantwerpen.be.fti.ei.Project.Discovery.SwimMembership;
 import uantwerpen.be.fti.ei.Project.NamingServer.HashingUtil;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+import uantwerpen.be.fti.ei.Project.replication.Compression;
 import uantwerpen.be.fti.ei.Project.replication.FileReplicator;
 import uantwerpen.be.fti.ei.Project.replication.FileWatcher;
+import uantwerpen.be.fti.ei.Project.replication.ReplicaCopies;
 import uantwerpen.be.fti.ei.Project.replication.ReplicationManager;
 
 import java.io.IOException;
@@ -21,7 +28,10 @@ import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -30,19 +40,27 @@ import java.util.concurrent.TimeUnit;
 @Profile("node")
 public class Node {
 
-    private int currentID;
-    private int previousID;
-    private int nextID;
+    private long currentID;
+    // read by the heartbeat ticker
+    private volatile long previousID;
+    private volatile long nextID;
 
     private String nodeName;
     private String ipAddress;
+    private Path storageDirectory;
+    // naming server side: above the placement load bound, so it gets no new files for now
+    private boolean overloaded;
 
     private transient ReplicationManager replicationManager;   // lab 5
     private transient FileWatcher        fileWatcher;          // lab 5
+    private transient HeartbeatMonitor   heartbeatMonitor;
+    private transient RingCache          ringCache;
+    private transient SwimMembership     membership;
+    private transient LoadReporter       loadReporter;
     private transient CompletableFuture<Integer> nodeCountFuture = new CompletableFuture<>();
 
     @Autowired
-    private transient RestTemplate rest;
+    private transient PeerClient rest;
 
     /* ------------- config ------------- */
     @Value("${storage.path}")
@@ -51,6 +69,78 @@ public class Node {
     @Value("${namingserver.url}")
     private String namingServerUrl;
 
+    // other naming instances, tried in order when namingServerUrl stops answering
+    @Value("${namingserver.failover-urls:}")
+    private String namingServerFailoverUrls;
+
+    @Value("${replication.receiver.max-concurrent:16}")
+    private int maxConcurrentTransfers;
+
+    @Value("${replication.pool.max-per-peer:4}")
+    private int maxConnectionsPerPeer;
+
+    @Value("${replication.connect-timeout-ms:2000}")
+    private int replicationConnectTimeoutMs;
+
+    @Value("${replication.read-timeout-ms:30000}")
+    private int replicationReadTimeoutMs;
+
+    @Value("${replication.write.timeout-ms:60000}")
+    private long writeTimeoutMs;
+
+    @Value("${replication.batch.size:500}")
+    private int replicationBatchSize;
+
+    @Value("${replication.write.quorum:2}")
+    private int writeQuorum;
+
+    @Value("${replication.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    @Value("${replication.compression.level:1}")
+    private int compressionLevel;
+
+    @Value("${replication.watcher.debounce-ms:200}")
+    private long watcherDebounceMs;
+
+    @Value("${replication.watcher.workers:4}")
+    private int replicationWorkers;
+
+    // a parked ring poll has to come back before http.client.read-timeout-ms cuts it off
+    @Value("${ring.cache.poll-wait-ms:4000}")
+    private long ringPollWaitMs;
+
+    @Value("${gossip.port:8084}")
+    private int gossipPort;
+
+    @Value("${gossip.interval-ms:1000}")
+    private long gossipIntervalMs;
+
+    @Value("${gossip.ack-timeout-ms:300}")
+    private long gossipAckTimeoutMs;
+
+    @Value("${gossip.indirect-probes:3}")
+    private int gossipIndirectProbes;
+
+    @Value("${gossip.suspicion-multiplier:4}")
+    private int gossipSuspicionMultiplier;
+
+    // must match the naming server's ring.hash, the node computes its own ring position
+    @Value("${ring.hash:murmur3}")
+    private String ringHash;
+
+    @Value("${heartbeat.port:8083}")
+    private int heartbeatPort;
+
+    @Value("${heartbeat.interval-ms:1000}")
+    private long heartbeatIntervalMs;
+
+    @Value("${heartbeat.phi-threshold:8.0}")
+    private double phiThreshold;
+
+    @Value("${load.report.interval-ms:5000}")
+    private long loadReportIntervalMs;
+
     @PostConstruct
     public void init() {
         try {
@@ -59,6 +149,7 @@ public class Node {
             this.ipAddress = "127.0.0.1";
         }
         this.nodeName = "Node-" + ThreadLocalRandom.current().nextInt(1, 10000);
+        HashingUtil.use(ringHash);
         this.currentID = HashingUtil.generateHash(nodeName);
         this.previousID = currentID;
         this.nextID = currentID;
@@ -76,13 +167,31 @@ public class Node {
             System.err.println("Failed to create storage directory: " + e.getMessage());
             throw new RuntimeException("Storage directory initialization failed", e);
         }
+        this.storageDirectory = storagePath;
 
 
-        this.replicationManager = new ReplicationManager(
-                nodeName, ipAddress, namingServerUrl, rest, storagePath.toString());
-        this.fileWatcher = new FileWatcher(storagePath.toString(), replicationManager);
-
-        FileReplicator.startFileReceiver(8082, storagePath.toString());
+        List<String> namingGroup = new ArrayList<>(List.of(namingServerUrl));
+        for (String url : namingServerFailoverUrls.split(",")) {
+            if (!url.isBlank()) namingGroup.add(url.trim());
+        }
+        rest.setFailoverGroup(namingGroup);
+
+        this.ringCache = new RingCache(rest, namingServerUrl, ringPollWaitMs);
+        this.replicationManager = new ReplicationManager(nodeName, ipAddress, namingServerUrl, rest,
+                storagePath.toString(), replicationBatchSize, writeQuorum, writeTimeoutMs, ringCache);
+        ReplicaCopies.load(storagePath);
+        this.fileWatcher = new FileWatcher(storagePath.toString(), replicationManager,
+                watcherDebounceMs, replicationWorkers, replicationBatchSize);
+        this.heartbeatMonitor = new HeartbeatMonitor(
+                this, rest, namingServerUrl, heartbeatPort, heartbeatIntervalMs, phiThreshold);
+        this.membership = new SwimMembership(nodeName, ipAddress, gossipPort, false, gossipIntervalMs,
+                gossipAckTimeoutMs, gossipIndirectProbes, gossipSuspicionMultiplier);
+        membership.addListener(this::onMemberChanged);
+        this.loadReporter = new LoadReporter(this, rest, namingServerUrl, loadReportIntervalMs);
+
+        Compression.configure(compressionEnabled, compressionLevel);
+        FileReplicator.configurePool(maxConnectionsPerPeer, replicationConnectTimeoutMs, replicationReadTimeoutMs);
+        FileReplicator.startFileReceiver(8082, storagePath.toString(), maxConcurrentTransfers);
 
         System.out.println("Node started: " + nodeName + " (ID: " + currentID + ")");
     }
@@ -99,6 +208,15 @@ public class Node {
         watcherThread.setDaemon(true);
         watcherThread.start();
 
+        // failure detection between ring neighbours
+        heartbeatMonitor.start();
+        // local copy of the ring for file placement
+        ringCache.start();
+        // cluster-wide membership view from the other nodes
+        membership.start();
+        // free disk, stored bytes and inbound replication rate for the naming server's placement
+        loadReporter.start();
+
         // Start a separate thread for discovery with delay
         new Thread(() -> {
             try {
@@ -134,6 +252,11 @@ public class Node {
     @PreDestroy
     public void onShutdown() {
         System.out.println("Graceful shutdown of node: " + nodeName);
+        heartbeatMonitor.stop();
+        loadReporter.stop();
+        ringCache.stop();
+        membership.leave();
+        membership.stop();
 
         // update neighbors
         if (previousID != currentID) {
@@ -149,7 +272,7 @@ public class Node {
 
     public synchronized int handleDiscovery(String newName) {
         if (newName.equals(nodeName)) return 0;          // ignore self
-        int newHash = HashingUtil.generateHash(newName);
+        long newHash = HashingUtil.generateHash(newName);
 
         int changed = 0;
         if (isBetween(currentID, newHash, nextID)) {  // I come before the new node
@@ -177,7 +300,7 @@ public class Node {
         nodeCountFuture.complete(count);
     }
 
-    private boolean isBetween(int low, int target, int high) {
+    private boolean isBetween(long low, long target, long high) {
         if (low < high) return target > low && target < high;
         else return target > low || target < high;
     }
@@ -196,22 +319,65 @@ public class Node {
         }
     }
 
-    public void updatePrevious(int id) { this.previousID = id; }
-    public void updateNext(int id) { this.nextID = id; }
+    public void updatePrevious(long id) { this.previousID = id; }
+    public void updateNext(long id) { this.nextID = id; }
+
+    // address learned from a discovery message, saves the heartbeat monitor a lookup
+    public void rememberAddress(String name, String ip) {
+        heartbeatMonitor.knownAddress(HashingUtil.generateHash(name), ip);
+    }
+
+    // a multicast announcement; the newcomer's successor also hands it the member list
+    public void gossipJoin(String name, String ip, boolean successor) {
+        membership.discovered(name, ip, gossipPort);
+        if (successor) membership.sync(name);
+    }
+
+    // joins and departures gossiped by other nodes. Pointers only ever move to a closer live node or
+    // away from a gone one, so a view that is still filling up cannot make them worse.
+    private void onMemberChanged(SwimMembership.Member member) {
+        if (member.observer()) return;
+        switch (member.state()) {
+            case ALIVE -> {
+                rememberAddress(member.name(), member.ip());
+                handleDiscovery(member.name());
+            }
+            case DEAD, LEFT -> replaceNeighbour(member.id());
+            default -> { }
+        }
+    }
+
+    private synchronized void replaceNeighbour(long goneId) {
+        if (goneId != previousID && goneId != nextID) return;
+        TreeSet<Long> ids = new TreeSet<>();
+        for (SwimMembership.Member m : membership.members()) {
+            if (!m.observer() && !m.isGone()) ids.add(m.id());
+        }
+        ids.add(currentID);
+        if (goneId == previousID) {
+            Long lower = ids.lower(currentID);
+            previousID = lower != null ? lower : ids.last();
+        }
+        if (goneId == nextID) {
+            Long higher = ids.higher(currentID);
+            nextID = higher != null ? higher : ids.first();
+        }
+        System.out.println("Neighbour " + goneId + " left the ring, now " + previousID + " <- " + currentID + " -> " + nextID);
+    }
 
     // Getters
-    public int getPreviousID() { return previousID; }
-    public int getNextID() { return nextID; }
+    public long getPreviousID() { return previousID; }
+    public long getNextID() { return nextID; }
 
-    public void setCurrentID(int currentID) {
+    public void setCurrentID(long currentID) {
         this.currentID = currentID;
     }
 
-    public void setPreviousID(int previousID) {
+    public void setPreviousID(long previousID) {
         this.previousID = previousID;
     }
 
-    public void setNextID(int nextID) {
+    public void setNextID(long nextID) {
         this.nextID = nextID;
     }
 
@@ -227,7 +393,21 @@ public class Node {
         return ipAddress;
     }
 
-    public int getCurrentID() {return currentID;}
+    public long getCurrentID() {return currentID;}
+
+    public boolean isOverloaded() { return overloaded; }
+
+    public void setOverloaded(boolean overloaded) { this.overloaded = overloaded; }
+
+    // the naming server keeps plain Node records too; these only mean something on a running node
+    @JsonIgnore
+    public Path getStorageDirectory() { return storageDirectory; }
+
+    @JsonIgnore
+    public long getRingEpoch() { return ringCache == null ? -1 : ringCache.epoch(); }
+
+    @JsonIgnore
+    public Map<String, Object> getLoad() { return loadReporter == null ? Map.of() : loadReporter.current(); }
 
     public String getNodeName() {
         return nodeName;
@@ -0,0 +1,180 @@
+package uantwerpen.be.fti.ei.Project.Discovery;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class HeartbeatMonitor {
+    // every node heartbeats its previous and next neighbour over UDP and watches the heartbeats coming back.
+    // Each node only ever looks at two peers, so detection time does not grow with the ring. A neighbour is
+    // reported to the naming server once its phi passes the threshold; the naming server confirms it.
+    private static final String PREFIX = "HB";
+
+    private final Node node;
+    private final PeerClient rest;
+    private final String namingServerUrl;
+    private final int port;
+    private final long intervalMillis;
+    private final double phiThreshold;
+
+    private final Map<Long, String> addresses = new ConcurrentHashMap<>();
+    private final Map<Long, PhiAccrualDetector> detectors = new ConcurrentHashMap<>();
+    private final Map<Long, Boolean> reported = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat-ticker");
+        t.setDaemon(true);
+        return t;
+    });
+    private DatagramSocket socket;
+    private long sequence;
+    private final Timer sweepTimer = Metrics.timer("failure.detection.sweep", "detector", "heartbeat");
+
+    public HeartbeatMonitor(Node node, PeerClient rest, String namingServerUrl, int port,
+                            long intervalMillis, double phiThreshold) {
+        this.node = node;
+        this.rest = rest;
+        this.namingServerUrl = namingServerUrl;
+        this.port = port;
+        this.intervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+    }
+
+    public void start() {
+        try {
+            socket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            System.err.println("Heartbeat socket on port " + port + " failed: " + e.getMessage());
+            return;
+        }
+        Thread receiver = new Thread(this::receive, "heartbeat-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Heartbeating ring neighbours on UDP " + port + " every " + intervalMillis + " ms");
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+        if (socket != null) socket.close();
+    }
+
+    // the naming server or a discovery message may tell us an address before the first heartbeat does
+    public void knownAddress(long id, String ip) {
+        addresses.put(id, ip);
+    }
+
+    private void tick() {
+        long start = System.nanoTime();
+        try {
+            long self = node.getCurrentID();
+            long prev = node.getPreviousID();
+            long next = node.getNextID();
+            long now = System.currentTimeMillis();
+
+            // forget peers that are no longer our neighbours
+            detectors.keySet().removeIf(id -> id != prev && id != next);
+            reported.keySet().removeIf(id -> id != prev && id != next);
+
+            byte[] beat = (PREFIX + ";" + self + ";" + (++sequence)).getBytes(StandardCharsets.UTF_8);
+            for (long id : new long[]{prev, next}) {
+                if (id == self) continue; // alone on the ring
+                String ip = addressOf(id);
+                if (ip == null) continue;
+                send(beat, ip);
+
+                // a new neighbour gets one expected interval of grace before silence counts
+                PhiAccrualDetector detector = detectors.computeIfAbsent(id, k -> {
+                    PhiAccrualDetector d = new PhiAccrualDetector(100, intervalMillis / 4, intervalMillis, intervalMillis);
+                    d.heartbeat(now);
+                    return d;
+                });
+                double phi = detector.phi(now);
+                if (phi > phiThreshold && reported.putIfAbsent(id, Boolean.TRUE) == null) {
+                    report(id, phi);
+                }
+            }
+        } catch (Exception e) {
+            // an exception would cancel the schedule
+            System.err.println("Heartbeat tick failed: " + e.getMessage());
+        } finally {
+            sweepTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[64];
+        while (!socket.isClosed()) {
+            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(pkt);
+            } catch (IOException e) {
+                if (!socket.isClosed()) System.err.println("heartbeat-receiver: " + e.getMessage());
+                continue;
+            }
+            String[] parts = new String(pkt.getData(), 0, pkt.getLength(), StandardCharsets.UTF_8).split(";");
+            if (parts.length != 3 || !PREFIX.equals(parts[0])) continue;
+            long id;
+            try {
+                id = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            addresses.put(id, pkt.getAddress().getHostAddress());
+            PhiAccrualDetector detector = detectors.get(id);
+            if (detector != null) {
+                detector.heartbeat(System.currentTimeMillis());
+                // it came back before the naming server removed it
+                if (reported.remove(id) != null) System.out.println("Neighbour " + id + " is heartbeating again");
+            }
+        }
+    }
+
+    private void send(byte[] beat, String ip) {
+        try {
+            socket.send(new DatagramPacket(beat, beat.length, new InetSocketAddress(InetAddress.getByName(ip), port)));
+        } catch (IOException e) {
+            System.err.println("Heartbeat to " + ip + " failed: " + e.getMessage());
+        }
+    }
+
+    private String addressOf(long id) {
+        String ip = addresses.get(id);
+        if (ip != null) return ip;
+        try {
+            Map<?, ?> info = rest.getForObject(namingServerUrl + "/api/nodes/" + id, Map.class);
+            if (info != null && info.get("ipAddress") != null) {
+                ip = info.get("ipAddress").toString();
+                addresses.put(id, ip);
+            }
+        } catch (Exception e) {
+            System.err.println("Cannot resolve neighbour " + id + ": " + e.getMessage());
+        }
+        return ip;
+    }
+
+    private void report(long id, double phi) {
+        System.out.println("Neighbour " + id + " suspected (phi " + String.format("%.1f", phi) + "), reporting");
+        rest.postAsync(namingServerUrl + "/api/nodes/" + id + "/failure",
+                        Map.of("reporterID", node.getCurrentID(), "phi", phi), Void.class)
+                .exceptionally(ex -> {
+                    // try again on the next tick
+                    reported.remove(id);
+                    System.err.println("Failure report for " + id + " failed: " + ex.getMessage());
+                    return null;
+                });
+    }
+}
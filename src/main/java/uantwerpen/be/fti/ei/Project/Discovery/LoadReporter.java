@@ -0,0 +1,93 @@
+package uantwerpen.be.fti.ei.Project.Discovery;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class LoadReporter {
+    // every node tells the naming server how full and how busy it is: free disk, bytes stored and the
+    // rate replicated files come in at. The naming server keeps new files away from nodes that are
+    // well above the average of the others.
+    private final Node node;
+    private final PeerClient rest;
+    private final String namingServerUrl;
+    private final long intervalMillis;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "load-reporter");
+        t.setDaemon(true);
+        return t;
+    });
+    private double lastReceived = -1;
+    private long lastNanos;
+    private volatile Map<String, Object> current = Map.of();
+
+    public LoadReporter(Node node, PeerClient rest, String namingServerUrl, long intervalMillis) {
+        this.node = node;
+        this.rest = rest;
+        this.namingServerUrl = namingServerUrl;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Reporting load to the naming server every " + intervalMillis + " ms");
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    // last measurement, also shown in the node's /api/bootstrap/state
+    public Map<String, Object> current() {
+        return current;
+    }
+
+    private void tick() {
+        try {
+            current = measure();
+            rest.postAsync(namingServerUrl + "/api/nodes/" + node.getCurrentID() + "/load", current, Void.class)
+                    .exceptionally(ex -> {
+                        // the next tick sends a fresh one anyway
+                        System.err.println("Load report failed: " + ex.getMessage());
+                        return null;
+                    });
+        } catch (Exception e) {
+            // an exception would cancel the schedule, and the naming server would drop the node's flag
+            System.err.println("Load report failed: " + e.getMessage());
+        }
+    }
+
+    private Map<String, Object> measure() throws IOException {
+        Path dir = node.getStorageDirectory();
+        long free = Files.getFileStore(dir).getUsableSpace();
+        long stored;
+        try (Stream<Path> files = Files.list(dir)) {
+            stored = files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+        return Map.of("freeBytes", free, "storedBytes", stored, "inboundBytesPerSec", inboundRate());
+    }
+
+    // bytes received by the replication receiver since the last tick, over all peers
+    private double inboundRate() {
+        double received = 0;
+        for (Counter c : Metrics.globalRegistry.find("replication.bytes").tag("direction", "received").counters()) {
+            received += c.count();
+        }
+        long now = System.nanoTime();
+        double rate = lastReceived < 0 ? 0 : (received - lastReceived) / ((now - lastNanos) / 1e9);
+        lastReceived = received;
+        lastNanos = now;
+        return rate;
+    }
+}
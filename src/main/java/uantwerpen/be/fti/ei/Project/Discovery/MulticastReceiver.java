@@ -29,6 +29,8 @@ public class MulticastReceiver implements Runnable {
 
 
                 int mask = node.handleDiscovery(name);
+                if (mask != 0) node.rememberAddress(name, ip);
+                node.gossipJoin(name, ip, (mask & 2) != 0);
 
                 if ((mask & 1) != 0) node.sendBootstrapResponse(ip, 1); // nextID updated so I am your previous
                 if ((mask & 2) != 0) node.sendBootstrapResponse(ip, 2); // PreviousID updated so I am your next
@@ -1,11 +1,14 @@
 package uantwerpen.be.fti.ei.Project.Discovery;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
+import uantwerpen.be.fti.ei.Project.NamingServer.NamingCluster;
 import uantwerpen.be.fti.ei.Project.NamingServer.NamingServer;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -20,10 +23,73 @@ public class NamingMulticastReceiver implements Runnable {
     @Autowired
     private NamingServer namingServer;
 
+    @Autowired
+    private NamingCluster cluster;
+
+    @Autowired
+    private PeerClient peerClient;
+
+    @Value("${gossip.port:8084}")
+    private int gossipPort;
+
+    @Value("${gossip.interval-ms:1000}")
+    private long gossipIntervalMs;
+
+    @Value("${gossip.ack-timeout-ms:300}")
+    private long gossipAckTimeoutMs;
+
+    @Value("${gossip.indirect-probes:3}")
+    private int gossipIndirectProbes;
+
+    @Value("${gossip.suspicion-multiplier:4}")
+    private int gossipSuspicionMultiplier;
+
+    // the naming server takes part in the gossip as an observer: nodes keep it out of the ring, but it
+    // hears about joins, leaves and failures from them instead of having to find out on its own
+    private SwimMembership membership;
+
     @PostConstruct
     public void start() {
+        String ip;
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (IOException e) {
+            ip = "127.0.0.1";
+        }
+        // one observer per naming instance, so replicas on one host don't shadow each other
+        membership = new SwimMembership("naming-server@" + ip + ":" + gossipPort, ip, gossipPort, true, gossipIntervalMs,
+                gossipAckTimeoutMs, gossipIndirectProbes, gossipSuspicionMultiplier);
+        membership.addListener(this::onMemberChanged);
+        membership.start();
+
         Thread t = new Thread(this); t.setDaemon(true); t.start();
     }
+
+    @PreDestroy
+    public void stop() {
+        membership.stop();
+    }
+
+    // listeners run on the gossip threads, the naming server calls may block. Every naming instance
+    // follows the gossip, only the leader acts on it (followers get the result through the log)
+    private void onMemberChanged(SwimMembership.Member member) {
+        if (member.observer() || !cluster.isLeader()) return;
+        Thread.ofVirtual().start(() -> {
+            switch (member.state()) {
+                case ALIVE -> {
+                    // a join the multicast packet never brought us
+                    if (namingServer.getNodeAddress(member.id()) == null
+                            && namingServer.addNode(member.name(), member.ip()) == NamingServer.Outcome.APPLIED) {
+                        System.out.println("Learned " + member.name() + " from gossip");
+                    }
+                }
+                // confirmed by the nodes' own probing; reportFailure still runs the health check
+                case DEAD -> namingServer.reportFailure(member.id(), 0);
+                case LEFT -> namingServer.removeNode(member.id());
+                default -> { }
+            }
+        });
+    }
     @Override
     public void run() {
         try (MulticastSocket sock = new MulticastSocket(MulticastConfig.MULTICAST_PORT)) {
@@ -36,16 +102,20 @@ public class NamingMulticastReceiver implements Runnable {
                 if (parts.length != 2) continue;
                 String nodeName = parts[0], ip = parts[1];
 
+                membership.discovered(nodeName, ip, gossipPort);
+                if (!cluster.isLeader()) continue;
 
-                boolean added = namingServer.addNode(nodeName, ip);
+                if (namingServer.addNode(nodeName, ip) == NamingServer.Outcome.NOT_PERSISTED) {
+                    System.err.println("Join of " + nodeName + " not persisted");
+                }
+                membership.sync(nodeName);
 
                 // Send node via rest
                 int count = namingServer.getNodeMap().size() - 1;
-                try {
-                    String url = "http://" + ip + ":8081/api/bootstrap/info";
-                    Map<String,Integer> body = Map.of("count", count);
-                    new RestTemplate().postForObject(url, body, Void.class);
-                } catch (Exception ignore) {}
+                String url = "http://" + ip + ":8081/api/bootstrap/info";
+                Map<String,Integer> body = Map.of("count", count);
+                peerClient.postAsync(url, body, Void.class)
+                        .exceptionally(e -> { System.err.println("bootstrap info → " + ip + " : " + e.getMessage()); return null; });
             }
         } catch (IOException e){ e.printStackTrace(); }
     }
@@ -0,0 +1,58 @@
+package uantwerpen.be.fti.ei.Project.Discovery;
+
+public class PhiAccrualDetector {
+    // phi accrual failure detector (Hayashibara et al.): instead of a fixed timeout it reports how
+    // unlikely the current silence is, given the heartbeat intervals seen so far.
+    // phi 1 ~ 10% chance the peer is still alive, phi 8 ~ 0.000001%.
+    private final long[] intervals;
+    private final long minStdDevMillis;
+    private final long acceptablePauseMillis;
+    private int count;
+    private int next;
+    private long sum;
+    private long squares;
+    private long lastHeartbeat = -1;
+
+    public PhiAccrualDetector(int windowSize, long minStdDevMillis, long acceptablePauseMillis, long expectedIntervalMillis) {
+        this.intervals = new long[Math.max(1, windowSize)];
+        this.minStdDevMillis = minStdDevMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        // seed with the expected interval so phi is meaningful before real samples exist
+        record(expectedIntervalMillis);
+        record(expectedIntervalMillis + expectedIntervalMillis / 4);
+    }
+
+    public synchronized void heartbeat(long nowMillis) {
+        if (lastHeartbeat >= 0) record(nowMillis - lastHeartbeat);
+        lastHeartbeat = nowMillis;
+    }
+
+    public synchronized boolean hasHeartbeat() { return lastHeartbeat >= 0; }
+
+    public synchronized double phi(long nowMillis) {
+        if (lastHeartbeat < 0) return 0.0;
+        double mean = (double) sum / count + acceptablePauseMillis;
+        double variance = (double) squares / count - ((double) sum / count) * ((double) sum / count);
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDevMillis);
+
+        // logistic approximation of the normal CDF, as used by Akka and Cassandra
+        double y = (nowMillis - lastHeartbeat - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double pLater = nowMillis - lastHeartbeat > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+    }
+
+    private void record(long interval) {
+        if (count == intervals.length) {
+            long old = intervals[next];
+            sum -= old;
+            squares -= old * old;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        squares += interval * interval;
+    }
+}
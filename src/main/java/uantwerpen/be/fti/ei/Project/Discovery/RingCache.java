@@ -0,0 +1,101 @@
+package uantwerpen.be.fti.ei.Project.Discovery;
+
+import uantwerpen.be.fti.ei.Project.NamingServer.HashingUtil;
+import uantwerpen.be.fti.ei.Project.NamingServer.ReplicationPolicy;
+import uantwerpen.be.fti.ei.Project.NamingServer.RingSnapshot;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+
+import java.util.List;
+import java.util.Map;
+
+public class RingCache {
+    // node-side copy of the naming server's ring, so owners and replica targets are computed in-process.
+    // One long-poll is parked at the naming server at all times and only returns when the membership
+    // epoch moves on, so the naming server sees requests per membership change, not per file.
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    private record View(RingSnapshot ring, ReplicationPolicy policy) {}
+
+    private final PeerClient rest;
+    private final String namingServerUrl;
+    private final long pollWaitMillis;
+    private volatile View view;
+    private volatile boolean running;
+    private Thread poller;
+
+    public RingCache(PeerClient rest, String namingServerUrl, long pollWaitMillis) {
+        this.rest = rest;
+        this.namingServerUrl = namingServerUrl;
+        this.pollWaitMillis = pollWaitMillis;
+    }
+
+    public void start() {
+        running = true;
+        poller = Thread.ofVirtual().name("ring-cache").start(this::poll);
+    }
+
+    public void stop() {
+        running = false;
+        if (poller != null) poller.interrupt();
+    }
+
+    public boolean isReady() {
+        return view != null;
+    }
+
+    public long epoch() {
+        View current = view;
+        return current == null ? -1 : current.ring().epoch();
+    }
+
+    public String ownerOf(String fileName) {
+        View current = view;
+        return current == null ? null : current.ring().ownerOf(HashingUtil.generateHash(fileName));
+    }
+
+    // same answer as the naming server's /api/replicate/preference for the cached epoch; null until loaded
+    public List<String> replicasOf(String fileName) {
+        View current = view;
+        return current == null ? null : current.policy().replicasOf(current.ring(), fileName);
+    }
+
+    private void poll() {
+        long backoff = MIN_BACKOFF_MS;
+        while (running) {
+            try {
+                Map<?, ?> compact = rest.getForObject(namingServerUrl + "/api/ring?since=" + epoch()
+                        + "&waitMs=" + pollWaitMillis, Map.class);
+                // null is a 304: nothing changed while we waited
+                if (compact != null) update(compact);
+                backoff = MIN_BACKOFF_MS;
+            } catch (Exception e) {
+                if (!running) return;
+                System.err.println("Ring refresh failed, retrying in " + backoff + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+        }
+    }
+
+    private void update(Map<?, ?> compact) {
+        // points computed with another hash would place every file wrongly; stay unready so callers
+        // keep asking the naming server
+        Object hash = compact.get("hash");
+        if (hash != null && !hash.equals(HashingUtil.strategy().name())) {
+            view = null;
+            throw new IllegalStateException("ring uses hash " + hash + " but this node uses "
+                    + HashingUtil.strategy().name() + ", set ring.hash=" + hash + " and restart");
+        }
+        RingSnapshot ring = RingSnapshot.fromCompact(compact);
+        ReplicationPolicy policy = new ReplicationPolicy(((Number) compact.get("replicationFactor")).intValue(),
+                (String) compact.get("replicationOverrides"));
+        long previous = epoch();
+        view = new View(ring, policy);
+        System.out.println("Ring epoch " + previous + " -> " + ring.epoch() + " (" + ring.physicalNodes() + " node(s))");
+    }
+}
@@ -0,0 +1,478 @@
+package uantwerpen.be.fti.ei.Project.Discovery;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import uantwerpen.be.fti.ei.Project.NamingServer.HashingUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class SwimMembership {
+    // SWIM membership over UDP. Every protocol period a member pings the next member of a shuffled
+    // round-robin; without an ack inside the ack timeout it asks `indirectProbes` others to ping on its
+    // behalf, and only when none of them gets through the member becomes SUSPECT. A suspect that does
+    // not refute (by gossiping a higher incarnation) within the suspicion timeout is declared DEAD.
+    // Joins, leaves and state changes ride along on the pings and acks, each repeated about
+    // LAMBDA * log2(N) times, so a change reaches every member in O(log N) periods with no extra packets.
+    // Multicast discovery stays the entry point: it tells the existing members about a newcomer, and
+    // the newcomer's ring successor (and the naming server) send it the full member list once.
+    public enum State { ALIVE, SUSPECT, DEAD, LEFT }
+
+    public record Member(String name, String ip, int port, boolean observer, State state, long incarnation) {
+        public long id() { return HashingUtil.generateHash(name); }
+
+        public boolean isGone() { return state == State.DEAD || state == State.LEFT; }
+
+        Member with(State newState, long newIncarnation) {
+            return new Member(name, ip, port, observer, newState, newIncarnation);
+        }
+    }
+
+    private static final int MAGIC = 0x5357494D; // "SWIM"
+    private static final byte PING = 1, ACK = 2, PING_REQ = 3, SYNC = 4;
+    private static final int MAX_PACKET = 1400;
+    private static final int LAMBDA = 3;
+    // dead members are remembered this many suspicion timeouts, so stale gossip cannot revive them
+    private static final int TOMBSTONE_TIMEOUTS = 10;
+
+    private record Gossip(Member update, int sent) {}
+    private record Relay(InetSocketAddress requester, int seq, long since) {}
+
+    private static final class Probe {
+        final String target;
+        final int seq;
+        volatile boolean acked;
+
+        Probe(String target, int seq) {
+            this.target = target;
+            this.seq = seq;
+        }
+    }
+
+    private final String selfName;
+    private final String selfIp;
+    private final int port;
+    private final boolean observer;
+    private final long intervalMillis;
+    private final long ackTimeoutMillis;
+    private final int indirectProbes;
+    private final int suspicionMultiplier;
+
+    private long incarnation;
+    private boolean leaving;
+    // everyone but ourselves, tombstones included
+    private final Map<String, Member> members = new HashMap<>();
+    private final Map<String, Long> stateSince = new HashMap<>();
+    private final Map<String, Gossip> gossip = new HashMap<>();
+    private final Map<Integer, Relay> relays = new ConcurrentHashMap<>();
+    private final List<Consumer<Member>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final List<String> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    private Probe probe;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "swim-ticker");
+        t.setDaemon(true);
+        return t;
+    });
+    private DatagramSocket socket;
+    private final Timer periodTimer = Metrics.timer("failure.detection.sweep", "detector", "swim");
+
+    public SwimMembership(String selfName, String selfIp, int port, boolean observer, long intervalMillis,
+                          long ackTimeoutMillis, int indirectProbes, int suspicionMultiplier) {
+        this.selfName = selfName;
+        this.selfIp = selfIp;
+        this.port = port;
+        this.observer = observer;
+        this.intervalMillis = intervalMillis;
+        this.ackTimeoutMillis = Math.min(ackTimeoutMillis, intervalMillis / 2);
+        this.indirectProbes = indirectProbes;
+        this.suspicionMultiplier = suspicionMultiplier;
+    }
+
+    public void start() {
+        try {
+            socket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            System.err.println("Gossip socket on port " + port + " failed: " + e.getMessage());
+            return;
+        }
+        Thread receiver = new Thread(this::receive, "swim-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        for (State state : State.values()) {
+            Gauge.builder("gossip.members", this, swim -> swim.count(state))
+                    .tag("state", state.name().toLowerCase(Locale.ROOT))
+                    .register(Metrics.globalRegistry);
+        }
+        ticker.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Gossiping membership on UDP " + port + " every " + intervalMillis + " ms");
+    }
+
+    // announce the leave to a few members directly, the gossip carries it to the rest
+    public void leave() {
+        List<Member> targets;
+        synchronized (this) {
+            leaving = true;
+            incarnation++;
+            enqueue(self().with(State.LEFT, incarnation));
+            targets = new ArrayList<>(liveMembers());
+        }
+        Collections.shuffle(targets);
+        for (Member m : targets.subList(0, Math.min(targets.size(), indirectProbes + 1))) {
+            send(m, PING, sequence.incrementAndGet(), null);
+        }
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+        if (socket != null) socket.close();
+    }
+
+    // called on state changes with the new state, from the gossip threads: listeners must only hand off
+    public void addListener(Consumer<Member> listener) {
+        listeners.add(listener);
+    }
+
+    // a member announced over multicast; it gets pinged like everyone else from the next period on
+    public void discovered(String name, String ip, int memberPort) {
+        if (name.equals(selfName)) return;
+        synchronized (this) {
+            if (!members.containsKey(name)) apply(new Member(name, ip, memberPort, false, State.ALIVE, 0));
+        }
+    }
+
+    // hands a newcomer the whole member list, so it does not have to wait for gossip to reach it
+    public void sync(String name) {
+        Member target;
+        List<Member> view;
+        synchronized (this) {
+            target = members.get(name);
+            view = new ArrayList<>(members.values());
+            view.add(self());
+        }
+        if (target == null) return;
+        int from = 0;
+        while (from < view.size()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PACKET);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                writeHeader(out, SYNC, 0);
+                List<Member> chunk = new ArrayList<>();
+                int used = bytes.size() + 2;
+                while (from < view.size() && used + sizeOf(view.get(from)) <= MAX_PACKET) {
+                    used += sizeOf(view.get(from));
+                    chunk.add(view.get(from++));
+                }
+                if (chunk.isEmpty()) break;
+                writeUpdates(out, chunk);
+            } catch (IOException e) {
+                return;
+            }
+            sendRaw(target, bytes.toByteArray());
+        }
+    }
+
+    // every known member including ourselves, tombstones left out
+    public synchronized List<Member> members() {
+        List<Member> view = new ArrayList<>(liveMembers());
+        view.add(self());
+        return view;
+    }
+
+    private Member self() {
+        return new Member(selfName, selfIp, port, observer, State.ALIVE, incarnation);
+    }
+
+    private List<Member> liveMembers() {
+        return members.values().stream().filter(m -> !m.isGone()).toList();
+    }
+
+    /* ------------- protocol period ------------- */
+
+    private void tick() {
+        long start = System.nanoTime();
+        try {
+            Probe started;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                // the previous probe got neither a direct nor an indirect ack
+                if (probe != null && !probe.acked) {
+                    Member m = members.get(probe.target);
+                    if (m != null && m.state() == State.ALIVE) {
+                        System.out.println("Member " + m.name() + " did not answer, suspecting it");
+                        apply(m.with(State.SUSPECT, m.incarnation()));
+                    }
+                }
+                expire(now);
+                relays.values().removeIf(r -> now - r.since() > intervalMillis);
+
+                Member target = nextTarget();
+                if (target == null) {
+                    probe = null;
+                    return;
+                }
+                started = new Probe(target.name(), sequence.incrementAndGet());
+                probe = started;
+                send(target, PING, started.seq, null);
+            }
+            ticker.schedule(() -> probeIndirectly(started), ackTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // an exception would cancel the schedule
+            System.err.println("Gossip tick failed: " + e.getMessage());
+        } finally {
+            periodTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized long count(State state) {
+        return members.values().stream().filter(m -> m.state() == state).count();
+    }
+
+    private void probeIndirectly(Probe p) {
+        if (p.acked) return;
+        List<Member> helpers;
+        Member target;
+        synchronized (this) {
+            target = members.get(p.target);
+            helpers = new ArrayList<>(liveMembers());
+        }
+        if (target == null) return;
+        helpers.removeIf(m -> m.name().equals(p.target));
+        Collections.shuffle(helpers);
+        for (Member helper : helpers.subList(0, Math.min(indirectProbes, helpers.size()))) {
+            send(helper, PING_REQ, p.seq, target);
+        }
+    }
+
+    // suspects past their timeout become DEAD; old tombstones are forgotten
+    private void expire(long now) {
+        long suspicion = suspicionTimeout();
+        for (Member m : new ArrayList<>(members.values())) {
+            long since = stateSince.getOrDefault(m.name(), now);
+            if (m.state() == State.SUSPECT && now - since > suspicion) {
+                System.out.println("Member " + m.name() + " confirmed dead");
+                apply(m.with(State.DEAD, m.incarnation()));
+            } else if (m.isGone() && now - since > suspicion * TOMBSTONE_TIMEOUTS) {
+                members.remove(m.name());
+                stateSince.remove(m.name());
+            }
+        }
+    }
+
+    // grows with log N like the time gossip needs to reach everyone, so a refutation can get back in time
+    private long suspicionTimeout() {
+        return (long) (suspicionMultiplier * Math.max(1.0, Math.log10(members.size() + 1)) * intervalMillis);
+    }
+
+    private Member nextTarget() {
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder.clear();
+            for (Member m : liveMembers()) probeOrder.add(m.name());
+            Collections.shuffle(probeOrder);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            Member m = members.get(probeOrder.get(probeIndex++));
+            if (m != null && !m.isGone()) return m;
+        }
+        return null;
+    }
+
+    /* ------------- state ------------- */
+
+    // caller holds the monitor
+    private void apply(Member update) {
+        if (update.name().equals(selfName)) {
+            // somebody thinks we are suspect or dead: outvote it with a higher incarnation
+            if (!leaving && (update.state() == State.SUSPECT || update.state() == State.DEAD)
+                    && update.incarnation() >= incarnation) {
+                incarnation = update.incarnation() + 1;
+                enqueue(self());
+            }
+            return;
+        }
+        Member known = members.get(update.name());
+        if (!supersedes(update, known)) return;
+        members.put(update.name(), update);
+        stateSince.put(update.name(), System.currentTimeMillis());
+        enqueue(update);
+        if (known == null ? !update.isGone() : known.state() != update.state()) {
+            for (Consumer<Member> listener : listeners) listener.accept(update);
+        }
+    }
+
+    private static boolean supersedes(Member update, Member known) {
+        if (known == null) return true;
+        return switch (update.state()) {
+            case ALIVE -> update.incarnation() > known.incarnation();
+            case SUSPECT -> known.state() == State.ALIVE ? update.incarnation() >= known.incarnation()
+                    : update.incarnation() > known.incarnation();
+            // a death needs at least the incarnation it was confirmed at, so one that was refuted
+            // meanwhile cannot come back with old gossip; only a higher incarnation revives a member
+            case DEAD, LEFT -> !known.isGone() && update.incarnation() >= known.incarnation();
+        };
+    }
+
+    private void enqueue(Member update) {
+        gossip.put(update.name(), new Gossip(update, 0));
+    }
+
+    // the least-sent updates that fit; each is dropped after LAMBDA * log2(N) sends
+    private List<Member> piggyback(int budget) {
+        int limit = LAMBDA * (int) Math.ceil(Math.log(members.size() + 2) / Math.log(2));
+        List<Gossip> pending = new ArrayList<>(gossip.values());
+        pending.sort(Comparator.comparingInt(Gossip::sent));
+        List<Member> chosen = new ArrayList<>();
+        int used = 0;
+        for (Gossip g : pending) {
+            int size = sizeOf(g.update());
+            if (used + size > budget) break;
+            used += size;
+            chosen.add(g.update());
+            if (g.sent() + 1 >= limit) gossip.remove(g.update().name());
+            else gossip.put(g.update().name(), new Gossip(g.update(), g.sent() + 1));
+        }
+        return chosen;
+    }
+
+    /* ------------- wire ------------- */
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_PACKET + 100];
+        while (!socket.isClosed()) {
+            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(pkt);
+                handle(pkt);
+            } catch (IOException e) {
+                if (!socket.isClosed()) System.err.println("swim-receiver: " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("swim-receiver: dropped malformed packet: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(DatagramPacket pkt) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(pkt.getData(), 0, pkt.getLength()));
+        if (in.readInt() != MAGIC) return;
+        byte type = in.readByte();
+        int seq = in.readInt();
+        String senderName = in.readUTF();
+        boolean senderObserver = in.readBoolean();
+        Member target = type == PING_REQ ? readMember(in) : null;
+        int count = in.readUnsignedShort();
+        List<Member> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) updates.add(readMember(in));
+
+        InetSocketAddress source = new InetSocketAddress(pkt.getAddress(), pkt.getPort());
+        Member pingTarget = null;
+        synchronized (this) {
+            // whoever talks to us is alive; this is how a newcomer learns the members probing it
+            if (!senderName.equals(selfName) && !members.containsKey(senderName)) {
+                apply(new Member(senderName, source.getHostString(), source.getPort(), senderObserver, State.ALIVE, 0));
+            }
+            for (Member update : updates) apply(update);
+            if (type == ACK && probe != null && probe.seq == seq) probe.acked = true;
+            if (type == PING_REQ) pingTarget = members.getOrDefault(target.name(), target);
+        }
+
+        switch (type) {
+            case PING -> send(source, ACK, seq, null);
+            case ACK -> {
+                // an ack for a ping we made on someone else's behalf goes back to them
+                Relay relay = relays.remove(seq);
+                if (relay != null) send(relay.requester(), ACK, relay.seq(), null);
+            }
+            case PING_REQ -> {
+                int relaySeq = sequence.incrementAndGet();
+                relays.put(relaySeq, new Relay(source, seq, System.currentTimeMillis()));
+                send(pingTarget, PING, relaySeq, null);
+            }
+            default -> { }
+        }
+    }
+
+    private void send(Member to, byte type, int seq, Member target) {
+        send(new InetSocketAddress(to.ip(), to.port()), type, seq, target);
+    }
+
+    private void send(InetSocketAddress to, byte type, int seq, Member target) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PACKET);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeHeader(out, type, seq);
+            if (target != null) writeMember(out, target);
+            List<Member> updates;
+            synchronized (this) {
+                updates = piggyback(MAX_PACKET - bytes.size() - 2);
+            }
+            writeUpdates(out, updates);
+        } catch (IOException e) {
+            return;
+        }
+        sendRaw(to, bytes.toByteArray());
+    }
+
+    private void sendRaw(Member to, byte[] data) {
+        sendRaw(new InetSocketAddress(to.ip(), to.port()), data);
+    }
+
+    private void sendRaw(InetSocketAddress to, byte[] data) {
+        if (socket == null || socket.isClosed()) return;
+        try {
+            socket.send(new DatagramPacket(data, data.length, to));
+        } catch (IOException e) {
+            System.err.println("Gossip to " + to + " failed: " + e.getMessage());
+        }
+    }
+
+    private void writeHeader(DataOutputStream out, byte type, int seq) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(type);
+        out.writeInt(seq);
+        out.writeUTF(selfName);
+        out.writeBoolean(observer);
+    }
+
+    private static void writeUpdates(DataOutputStream out, List<Member> updates) throws IOException {
+        out.writeShort(updates.size());
+        for (Member m : updates) writeMember(out, m);
+    }
+
+    private static void writeMember(DataOutputStream out, Member m) throws IOException {
+        out.writeByte(m.state().ordinal());
+        out.writeLong(m.incarnation());
+        out.writeUTF(m.name());
+        out.writeUTF(m.ip());
+        out.writeShort(m.port());
+        out.writeBoolean(m.observer());
+    }
+
+    private static Member readMember(DataInputStream in) throws IOException {
+        State state = State.values()[in.readByte()];
+        long inc = in.readLong();
+        String name = in.readUTF();
+        String ip = in.readUTF();
+        int memberPort = in.readUnsignedShort();
+        boolean observer = in.readBoolean();
+        return new Member(name, ip, memberPort, observer, state, inc);
+    }
+
+    private static int sizeOf(Member m) {
+        return 1 + 8 + 2 + m.name().length() + 2 + m.ip().length() + 2 + 1;
+    }
+}
@@ -0,0 +1,175 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class FileCatalog {
+    // files per node plus the reverse index (file -> owner and every node holding a copy).
+    // Writers are serialised by the NamingServer monitor, readers may look without locking.
+    private final Map<String, Set<String>> byNode = new ConcurrentHashMap<>();
+    private final Map<String, Location> byFile = new ConcurrentHashMap<>();
+    // ring-ordered index so a membership change only visits the files on the arcs that moved
+    private final ConcurrentSkipListMap<Long, Set<String>> byHash = new ConcurrentSkipListMap<>();
+
+    private static final class Location {
+        final long hash;
+        volatile String owner;
+        final Set<String> holders = ConcurrentHashMap.newKeySet();
+
+        Location(String fileName) { this.hash = HashingUtil.generateHash(fileName); }
+    }
+
+    public void addNode(String ip) {
+        byNode.computeIfAbsent(ip, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    public void add(String ip, String fileName, boolean owner) {
+        byNode.computeIfAbsent(ip, k -> ConcurrentHashMap.newKeySet()).add(fileName);
+        Location loc = byFile.computeIfAbsent(fileName, f -> {
+            Location created = new Location(f);
+            byHash.computeIfAbsent(created.hash, k -> ConcurrentHashMap.newKeySet()).add(f);
+            return created;
+        });
+        loc.holders.add(ip);
+        if (owner || loc.owner == null) loc.owner = ip;
+    }
+
+    public void remove(String ip, String fileName) {
+        Set<String> files = byNode.get(ip);
+        if (files != null) files.remove(fileName);
+        Location loc = byFile.get(fileName);
+        if (loc == null) return;
+        loc.holders.remove(ip);
+        if (loc.holders.isEmpty()) {
+            forget(fileName, loc);
+        } else if (ip.equals(loc.owner)) {
+            loc.owner = loc.holders.iterator().next();
+        }
+    }
+
+    // forget a node and everything it held; costs the node's file count, not the catalog size
+    public void dropNode(String ip) {
+        Set<String> files = byNode.remove(ip);
+        if (files == null) return;
+        for (String f : files) {
+            Location loc = byFile.get(f);
+            if (loc == null) continue;
+            loc.holders.remove(ip);
+            if (loc.holders.isEmpty()) {
+                forget(f, loc);
+            } else if (ip.equals(loc.owner)) {
+                loc.owner = loc.holders.iterator().next();
+            }
+        }
+    }
+
+    private void forget(String fileName, Location loc) {
+        byFile.remove(fileName);
+        Set<String> sameHash = byHash.get(loc.hash);
+        if (sameHash != null) {
+            sameHash.remove(fileName);
+            if (sameHash.isEmpty()) byHash.remove(loc.hash);
+        }
+    }
+
+    // files hashed into the arc (fromExclusive, toInclusive], wrapping past the end of the ring;
+    // equal bounds mean the whole ring
+    public List<String> filesInRange(long fromExclusive, long toInclusive) {
+        List<String> files = new ArrayList<>();
+        if (fromExclusive < toInclusive) {
+            byHash.subMap(fromExclusive, false, toInclusive, true).values().forEach(files::addAll);
+        } else if (fromExclusive > toInclusive) {
+            byHash.tailMap(fromExclusive, false).values().forEach(files::addAll);
+            byHash.headMap(toInclusive, true).values().forEach(files::addAll);
+        } else {
+            byHash.values().forEach(files::addAll);
+        }
+        return files;
+    }
+
+    public boolean holds(String ip, String fileName) {
+        Location loc = byFile.get(fileName);
+        return loc != null && loc.holders.contains(ip);
+    }
+
+    public String ownerOf(String fileName) {
+        Location loc = byFile.get(fileName);
+        return loc == null ? null : loc.owner;
+    }
+
+    // ring position, hashed once when the file entered the catalog
+    public long hashOf(String fileName) {
+        Location loc = byFile.get(fileName);
+        return loc == null ? HashingUtil.generateHash(fileName) : loc.hash;
+    }
+
+    public Set<String> holders(String fileName) {
+        Location loc = byFile.get(fileName);
+        return loc == null ? Set.of() : Collections.unmodifiableSet(loc.holders);
+    }
+
+    public Set<String> filesOn(String ip) {
+        Set<String> files = byNode.get(ip);
+        return files == null ? Set.of() : Collections.unmodifiableSet(files);
+    }
+
+    public Set<String> nodes() {
+        return Collections.unmodifiableSet(byNode.keySet());
+    }
+
+    public int fileCount() { return byFile.size(); }
+
+    // plain copies for snapshots; caller holds the monitor so both views match
+    public Map<String, Set<String>> copyByNode() {
+        Map<String, Set<String>> copy = new TreeMap<>();
+        byNode.forEach((ip, files) -> copy.put(ip, new HashSet<>(files)));
+        return copy;
+    }
+
+    public Map<String, String> copyOwners() {
+        Map<String, String> copy = new HashMap<>();
+        byFile.forEach((f, loc) -> { if (loc.owner != null) copy.put(f, loc.owner); });
+        return copy;
+    }
+
+    public static FileCatalog of(Map<String, Set<String>> byNode, Map<String, String> owners) {
+        FileCatalog catalog = new FileCatalog();
+        byNode.forEach((ip, files) -> {
+            catalog.addNode(ip);
+            files.forEach(f -> catalog.add(ip, f, ip.equals(owners.get(f))));
+        });
+        return catalog;
+    }
+
+    // checks that both views describe the same placement and, if given, that they match another catalog
+    public List<String> verify(FileCatalog other) {
+        List<String> problems = new ArrayList<>();
+        byNode.forEach((ip, files) -> files.forEach(f -> {
+            if (!holds(ip, f)) problems.add("index misses " + f + " on " + ip);
+        }));
+        byFile.forEach((f, loc) -> {
+            for (String ip : loc.holders) {
+                if (!byNode.getOrDefault(ip, Set.of()).contains(f)) problems.add("node view misses " + f + " on " + ip);
+            }
+            if (loc.owner != null && !loc.holders.contains(loc.owner)) problems.add("owner of " + f + " does not hold it");
+        });
+        if (other == null) return problems;
+
+        Set<String> ips = new TreeSet<>(byNode.keySet());
+        ips.addAll(other.byNode.keySet());
+        for (String ip : ips) {
+            Set<String> mine = byNode.getOrDefault(ip, Set.of());
+            Set<String> theirs = other.byNode.getOrDefault(ip, Set.of());
+            for (String f : mine) if (!theirs.contains(f)) problems.add("not persisted: " + f + " on " + ip);
+            for (String f : theirs) if (!mine.contains(f)) problems.add("only persisted: " + f + " on " + ip);
+        }
+        byFile.forEach((f, loc) -> {
+            String persisted = other.ownerOf(f);
+            if (persisted != null && !persisted.equals(loc.owner)) {
+                problems.add("owner of " + f + " is " + loc.owner + " but persisted as " + persisted);
+            }
+        });
+        return problems;
+    }
+}
@@ -0,0 +1,21 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+public interface HashStrategy {
+    // maps node and file names onto the ring. Every naming server and node has to use the same one,
+    // the name is what gets persisted next to the catalog so a change can be detected and migrated.
+    String name();
+
+    long hash(CharSequence input);
+
+    // fraction of the ring covered by the arc (from, to]; equal bounds are the whole ring
+    double arcFraction(long from, long to);
+
+    static HashStrategy named(String name) {
+        return switch (name == null ? "" : name.trim().toLowerCase()) {
+            case Murmur3Hash.NAME -> Murmur3Hash.INSTANCE;
+            case LegacyHash.NAME -> LegacyHash.INSTANCE;
+            default -> throw new IllegalArgumentException("Unknown ring hash '" + name + "', expected "
+                    + Murmur3Hash.NAME + " or " + LegacyHash.NAME);
+        };
+    }
+}
@@ -1,10 +1,21 @@
 package uantwerpen.be.fti.ei.Project.NamingServer;
 
 public class HashingUtil {
+    // ring positions come from the strategy picked with ring.hash (murmur3 unless configured otherwise)
+    private static volatile HashStrategy strategy = Murmur3Hash.INSTANCE;
 
-    public static int generateHash(String input) {
-        int hash = input.hashCode();
-        hash = hash & Integer.MAX_VALUE; // Ensures non-negative
-        return hash % 32768; // 0-32767
+    public static void use(String name) {
+        strategy = HashStrategy.named(name);
+    }
+
+    public static HashStrategy strategy() { return strategy; }
+
+    public static long generateHash(String input) {
+        return strategy.hash(input);
+    }
+
+    // position of the i-th virtual node of a physical node; vnode 0 is the node's own hash
+    public static long virtualNodeHash(String nodeName, int index) {
+        return index == 0 ? generateHash(nodeName) : generateHash(nodeName + "#" + index);
     }
 }
@@ -0,0 +1,27 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+public final class LegacyHash implements HashStrategy {
+    // the original placement: String.hashCode() folded into 15 bits. Kept so state written with it
+    // can still be read and migrated, and as the baseline in the hashing benchmarks.
+    public static final String NAME = "legacy";
+    public static final int RING_SIZE = 32768;
+    public static final LegacyHash INSTANCE = new LegacyHash();
+
+    private LegacyHash() {}
+
+    @Override
+    public String name() { return NAME; }
+
+    @Override
+    public long hash(CharSequence input) {
+        int hash = input.toString().hashCode();
+        hash = hash & Integer.MAX_VALUE; // Ensures non-negative
+        return hash % RING_SIZE; // 0-32767
+    }
+
+    @Override
+    public double arcFraction(long from, long to) {
+        if (from == to) return 1.0;
+        return (double) Math.floorMod(to - from, RING_SIZE) / RING_SIZE;
+    }
+}
@@ -0,0 +1,124 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+public final class Murmur3Hash implements HashStrategy {
+    // MurmurHash3 x64_128 of the name's UTF-8 bytes, first 64 bits (what Guava's asLong() returns),
+    // spread over the whole signed long range; ring order is plain long order, wrapping at MAX_VALUE.
+    // The UTF-8 bytes are produced char by char and folded straight into the 16-byte block, so
+    // hashing a name allocates nothing. Unpaired surrogates become '?' like String.getBytes(UTF_8).
+    public static final String NAME = "murmur3";
+    public static final Murmur3Hash INSTANCE = new Murmur3Hash();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final double RING_SIZE = 0x1p64;
+
+    private Murmur3Hash() {}
+
+    @Override
+    public String name() { return NAME; }
+
+    @Override
+    public long hash(CharSequence input) {
+        long h1 = 0, h2 = 0;
+        long k1 = 0, k2 = 0;
+        int fill = 0; // bytes in the current block
+        long length = 0;
+        // UTF-8 bytes of the last char that are not in the block yet, little end first
+        int pending = 0, pendingCount = 0;
+        int chars = input.length();
+        int i = 0;
+        while (true) {
+            if (fill == 16) {
+                k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+                h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+                k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+                h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+                k1 = k2 = 0;
+                fill = 0;
+            }
+            if (pendingCount > 0) {
+                long v = pending & 0xFFL;
+                if (fill < 8) k1 |= v << (fill << 3);
+                else k2 |= v << ((fill - 8) << 3);
+                fill++;
+                pending >>>= 8;
+                pendingCount--;
+                continue;
+            }
+            if (i >= chars) break;
+
+            // names are nearly always ASCII: eight chars go into one half of the block at once
+            if ((fill & 7) == 0 && i + 8 <= chars) {
+                long word = 0;
+                int seen = 0;
+                for (int j = 0; j < 8; j++) {
+                    char c = input.charAt(i + j);
+                    seen |= c;
+                    word |= (long) c << (j << 3);
+                }
+                if (seen < 0x80) {
+                    if (fill == 0) k1 = word;
+                    else k2 = word;
+                    fill += 8;
+                    i += 8;
+                    length += 8;
+                    continue;
+                }
+            }
+
+            char c = input.charAt(i++);
+            if (c < 0x80) {
+                pending = c;
+                pendingCount = 1;
+            } else if (c < 0x800) {
+                pending = (0xC0 | c >> 6) | (0x80 | c & 0x3F) << 8;
+                pendingCount = 2;
+            } else if (!Character.isSurrogate(c)) {
+                pending = (0xE0 | c >> 12) | (0x80 | c >> 6 & 0x3F) << 8 | (0x80 | c & 0x3F) << 16;
+                pendingCount = 3;
+            } else if (Character.isHighSurrogate(c) && i < chars && Character.isLowSurrogate(input.charAt(i))) {
+                int cp = Character.toCodePoint(c, input.charAt(i++));
+                pending = (0xF0 | cp >> 18) | (0x80 | cp >> 12 & 0x3F) << 8
+                        | (0x80 | cp >> 6 & 0x3F) << 16 | (0x80 | cp & 0x3F) << 24;
+                pendingCount = 4;
+            } else {
+                pending = '?';
+                pendingCount = 1;
+            }
+            length += pendingCount;
+        }
+
+        // tail: the partial block, already in little-endian order
+        if (fill > 8) {
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+        }
+        if (fill > 0) {
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public double arcFraction(long from, long to) {
+        if (from == to) return 1.0;
+        long arc = to - from; // modulo 2^64, read as unsigned
+        return (arc >= 0 ? arc : arc + RING_SIZE) / RING_SIZE;
+    }
+}
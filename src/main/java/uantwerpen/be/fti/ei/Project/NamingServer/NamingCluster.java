@@ -0,0 +1,423 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+import uantwerpen.be.fti.ei.Project.storage.JsonService;
+import uantwerpen.be.fti.ei.Project.storage.MutationLog;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+@Profile("namingserver")
+public class NamingCluster {
+    // Raft-style replication of the naming state over several naming server instances. One leader takes
+    // every write and ships the entries NamingServer logs anyway to the followers; a write returns once a
+    // majority has them on disk. Followers apply the same entries to their own copy and serve the reads,
+    // writes are redirected to the leader (LeaderRedirectFilter).
+    // A follower that hears nothing from a leader for a randomised election timeout stands for election;
+    // votes only go to candidates whose log is at least as far along, so the winner has every committed
+    // write. A follower whose log does not line up with the leader's gets the whole state as a snapshot.
+    // Without namingserver.cluster.peers the instance is its own leader, exactly as before.
+    public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    public record VoteRequest(long term, String candidate, long lastSeq, long lastTerm) {}
+    public record VoteResponse(long term, boolean granted) {}
+    public record AppendRequest(long term, String leader, long prevSeq, long prevTerm, List<MutationLog.Entry> entries) {}
+    public record AppendResponse(long term, boolean success, long lastSeq, long lastTerm) {}
+    public record NodeEntry(long hash, String name, String ip, long previous, long next, boolean overloaded) {}
+    public record StateSnapshot(long term, String leader, long seq, long lastTerm, List<NodeEntry> nodes,
+                                Map<String, Set<String>> files, Map<String, String> owners) {}
+
+    private static final int MAX_BATCH = 1000;
+    // entries kept in memory to bring a lagging follower up to date; further behind means a snapshot
+    private static final int RETAINED_ENTRIES = 50_000;
+
+    @Autowired
+    private NamingServer namingServer;
+
+    @Autowired
+    private PeerClient peerClient;
+
+    @Value("${namingserver.cluster.self:}")
+    private String self;
+
+    @Value("${namingserver.cluster.peers:}")
+    private String peerList;
+
+    @Value("${namingserver.cluster.election-timeout-ms:1500}")
+    private long electionTimeoutMs;
+
+    @Value("${namingserver.cluster.heartbeat-ms:300}")
+    private long heartbeatMs;
+
+    private static final class Peer {
+        final String url;
+        volatile long nextSeq;
+        volatile long matchSeq;
+        volatile long lastAck;
+        final AtomicBoolean busy = new AtomicBoolean();
+
+        Peer(String url) { this.url = url; }
+    }
+
+    private final List<Peer> peers = new ArrayList<>();
+    private volatile long term;
+    private String votedFor;
+    private volatile Role role = Role.FOLLOWER;
+    private volatile String leader;
+    private long leaderSince;
+    private long electionDeadline;
+
+    private final ConcurrentSkipListMap<Long, MutationLog.Entry> recent = new ConcurrentSkipListMap<>();
+    // writes waiting for a majority, by seq
+    private final TreeMap<Long, CompletableFuture<Void>> pendingCommits = new TreeMap<>();
+    private long commitSeq;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "naming-cluster");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService rpc = Executors.newVirtualThreadPerTaskExecutor();
+
+    @PostConstruct
+    public void init() {
+        Map<String, Object> vote = JsonService.loadVote();
+        term = ((Number) vote.getOrDefault("term", 0)).longValue();
+        votedFor = (String) vote.get("votedFor");
+        for (String url : peerList.split(",")) {
+            url = url.trim();
+            if (!url.isEmpty() && !url.equals(self)) peers.add(new Peer(url));
+        }
+        namingServer.attach(this);
+
+        if (peers.isEmpty()) {
+            role = Role.LEADER;
+            leader = self.isEmpty() ? null : self;
+            namingServer.leadershipAcquired();
+            return;
+        }
+        if (self.isEmpty()) throw new IllegalStateException("namingserver.cluster.self is required with peers");
+        synchronized (this) {
+            resetElectionTimer();
+        }
+        System.out.println("Naming cluster: " + self + " with " + peers.size() + " peer(s), term " + term);
+        ticker.scheduleAtFixedRate(this::tick, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+        rpc.shutdownNow();
+    }
+
+    public boolean isLeader() { return role == Role.LEADER; }
+
+    public long term() { return term; }
+
+    // base URL of the current leader, null while an election is running
+    public String leader() { return isLeader() && leader == null ? self : leader; }
+
+    // leader side: called for every logged entry; completes once a majority has it
+    public CompletableFuture<Void> replicate(MutationLog.Entry e) {
+        if (peers.isEmpty()) return CompletableFuture.completedFuture(null);
+        recent.put(e.seq, e);
+        while (recent.size() > RETAINED_ENTRIES) recent.pollFirstEntry();
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        synchronized (pendingCommits) {
+            if (e.seq <= commitSeq) committed.complete(null);
+            else pendingCommits.put(e.seq, committed);
+        }
+        // don't wait for the next heartbeat; peers with a request in flight pick this up when it returns
+        peers.forEach(this::replicateTo);
+        return committed.orTimeout(electionTimeoutMs * 4, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        try {
+            if (role == Role.LEADER) {
+                long now = System.currentTimeMillis();
+                long reachable = 1 + peers.stream().filter(p -> now - p.lastAck < electionTimeoutMs).count();
+                // cut off from the majority: stop taking writes that can never commit
+                if (reachable < majority() && now - leaderSince > electionTimeoutMs) {
+                    System.out.println("Naming cluster: lost contact with the majority, stepping down");
+                    stepDown(term, null);
+                    return;
+                }
+                peers.forEach(this::replicateTo);
+            } else if (System.currentTimeMillis() >= deadline()) {
+                startElection();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Naming cluster tick failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized long deadline() { return electionDeadline; }
+
+    private int majority() { return (peers.size() + 1) / 2 + 1; }
+
+    private void startElection() {
+        VoteRequest request;
+        synchronized (this) {
+            role = Role.CANDIDATE;
+            term++;
+            votedFor = self;
+            leader = null;
+            JsonService.saveVote(term, votedFor);
+            resetElectionTimer();
+            request = new VoteRequest(term, self, namingServer.lastSeq(), namingServer.lastTerm());
+        }
+        System.out.println("Naming cluster: standing for election in term " + request.term());
+        AtomicInteger votes = new AtomicInteger(1);
+        for (Peer p : peers) {
+            rpc.submit(() -> {
+                try {
+                    VoteResponse r = peerClient.postForObject(p.url + "/api/cluster/vote", request, VoteResponse.class);
+                    if (r == null) return;
+                    if (r.term() > request.term()) stepDown(r.term(), null);
+                    else if (r.granted() && votes.incrementAndGet() == majority()) becomeLeader(request.term());
+                } catch (Exception e) {
+                    // unreachable peer: no vote
+                }
+            });
+        }
+    }
+
+    private void becomeLeader(long electionTerm) {
+        synchronized (this) {
+            if (role != Role.CANDIDATE || term != electionTerm) return;
+            role = Role.LEADER;
+            leader = self;
+            leaderSince = System.currentTimeMillis();
+            long next = namingServer.lastSeq() + 1;
+            for (Peer p : peers) {
+                p.nextSeq = next;
+                p.matchSeq = 0;
+                p.lastAck = leaderSince;
+            }
+        }
+        System.out.println("Naming cluster: " + self + " is leader for term " + electionTerm);
+        peers.forEach(this::replicateTo);
+        rpc.submit(namingServer::leadershipAcquired);
+    }
+
+    private void stepDown(long newTerm, String newLeader) {
+        boolean wasLeader;
+        synchronized (this) {
+            wasLeader = role == Role.LEADER;
+            adoptTerm(newTerm);
+            role = Role.FOLLOWER;
+            if (newLeader != null) leader = newLeader;
+            else if (wasLeader) leader = null;
+            resetElectionTimer();
+        }
+        if (wasLeader) lostLeadership();
+    }
+
+    // caller holds the monitor
+    private void adoptTerm(long newTerm) {
+        if (newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            JsonService.saveVote(term, null);
+        }
+    }
+
+    // caller holds the monitor
+    private void resetElectionTimer() {
+        electionDeadline = System.currentTimeMillis() + electionTimeoutMs
+                + ThreadLocalRandom.current().nextLong(electionTimeoutMs);
+    }
+
+    private void lostLeadership() {
+        failPending();
+        namingServer.leadershipLost();
+    }
+
+    private void failPending() {
+        List<CompletableFuture<Void>> lost;
+        synchronized (pendingCommits) {
+            lost = new ArrayList<>(pendingCommits.values());
+            pendingCommits.clear();
+        }
+        lost.forEach(f -> f.completeExceptionally(new IllegalStateException("lost naming leadership")));
+    }
+
+    public VoteResponse handleVote(VoteRequest request) {
+        boolean wasLeader;
+        boolean granted;
+        long current;
+        synchronized (this) {
+            wasLeader = role == Role.LEADER && request.term() > term;
+            if (request.term() > term) {
+                adoptTerm(request.term());
+                role = Role.FOLLOWER;
+                leader = null;
+            }
+            long lastTerm = namingServer.lastTerm(), lastSeq = namingServer.lastSeq();
+            boolean upToDate = request.lastTerm() > lastTerm
+                    || (request.lastTerm() == lastTerm && request.lastSeq() >= lastSeq);
+            granted = request.term() == term && upToDate
+                    && (votedFor == null || votedFor.equals(request.candidate()));
+            if (granted) {
+                votedFor = request.candidate();
+                JsonService.saveVote(term, votedFor);
+                resetElectionTimer();
+            }
+            current = term;
+        }
+        if (wasLeader) lostLeadership();
+        return new VoteResponse(current, granted);
+    }
+
+    // term check shared by append and snapshot; false if the sender is a stale leader
+    private boolean acceptLeader(long leaderTerm, String leaderUrl) {
+        boolean wasLeader;
+        synchronized (this) {
+            if (leaderTerm < term) return false;
+            wasLeader = role == Role.LEADER;
+            adoptTerm(leaderTerm);
+            role = Role.FOLLOWER;
+            leader = leaderUrl;
+            resetElectionTimer();
+        }
+        if (wasLeader) lostLeadership();
+        return true;
+    }
+
+    public synchronized AppendResponse handleAppend(AppendRequest request) {
+        if (!acceptLeader(request.term(), request.leader())) {
+            return new AppendResponse(term, false, namingServer.lastSeq(), namingServer.lastTerm());
+        }
+        if (request.prevSeq() != namingServer.lastSeq() || request.prevTerm() != namingServer.lastTerm()) {
+            return new AppendResponse(term, false, namingServer.lastSeq(), namingServer.lastTerm());
+        }
+        List<MutationLog.Entry> entries = request.entries() == null ? List.of() : request.entries();
+        if (!entries.isEmpty()) {
+            try {
+                namingServer.applyReplicated(entries).join();
+            } catch (RuntimeException e) {
+                System.err.println("Naming cluster: applying entries failed: " + e.getMessage());
+                return new AppendResponse(term, false, namingServer.lastSeq(), namingServer.lastTerm());
+            }
+            // kept so this instance can feed the others without snapshots if it is elected next
+            entries.forEach(e -> recent.put(e.seq, e));
+            while (recent.size() > RETAINED_ENTRIES) recent.pollFirstEntry();
+        }
+        return new AppendResponse(term, true, namingServer.lastSeq(), namingServer.lastTerm());
+    }
+
+    public synchronized AppendResponse handleSnapshot(StateSnapshot snapshot) {
+        if (!acceptLeader(snapshot.term(), snapshot.leader())) {
+            return new AppendResponse(term, false, namingServer.lastSeq(), namingServer.lastTerm());
+        }
+        namingServer.installSnapshot(snapshot);
+        recent.clear();
+        return new AppendResponse(term, true, namingServer.lastSeq(), namingServer.lastTerm());
+    }
+
+    // term of the entry at seq as far as the leader can tell, -1 if it no longer has it
+    private long termAt(long seq) {
+        if (seq == 0) return 0;
+        if (seq == namingServer.lastSeq()) return namingServer.lastTerm();
+        MutationLog.Entry e = recent.get(seq);
+        return e == null ? -1 : e.term == null ? 0 : e.term;
+    }
+
+    // one request in flight per peer: entries from nextSeq on, a bare heartbeat, or a snapshot
+    private void replicateTo(Peer p) {
+        if (role != Role.LEADER || !p.busy.compareAndSet(false, true)) return;
+        rpc.submit(() -> {
+            boolean again = false;
+            try {
+                long currentTerm = term;
+                long next = p.nextSeq;
+                long prevTerm = termAt(next - 1);
+                List<MutationLog.Entry> entries = new ArrayList<>(
+                        recent.subMap(next, true, next + MAX_BATCH, false).values());
+                boolean gap = entries.isEmpty() ? next <= namingServer.lastSeq() : entries.get(0).seq != next;
+                AppendResponse r;
+                if (prevTerm < 0 || gap) {
+                    r = peerClient.postForObject(p.url + "/api/cluster/snapshot",
+                            namingServer.stateSnapshot(currentTerm, self), AppendResponse.class);
+                } else {
+                    r = peerClient.postForObject(p.url + "/api/cluster/append",
+                            new AppendRequest(currentTerm, self, next - 1, prevTerm, entries), AppendResponse.class);
+                }
+                if (r == null) return;
+                if (r.term() > currentTerm) {
+                    stepDown(r.term(), null);
+                    return;
+                }
+                p.lastAck = System.currentTimeMillis();
+                if (r.success()) {
+                    p.matchSeq = r.lastSeq();
+                    p.nextSeq = r.lastSeq() + 1;
+                    advanceCommit();
+                    again = p.nextSeq <= namingServer.lastSeq();
+                } else {
+                    // resume right after the follower's log if it is a prefix of ours, else start over from a snapshot
+                    boolean prefix = r.lastSeq() <= namingServer.lastSeq() && termAt(r.lastSeq()) == r.lastTerm();
+                    p.nextSeq = prefix ? r.lastSeq() + 1 : 0;
+                    again = true;
+                }
+            } catch (Exception e) {
+                // unreachable: the next heartbeat tries again
+            } finally {
+                p.busy.set(false);
+            }
+            if (again) replicateTo(p);
+        });
+    }
+
+    // the highest seq a majority (this instance included) has logged
+    private void advanceCommit() {
+        long[] matched = new long[peers.size() + 1];
+        matched[0] = namingServer.lastSeq();
+        for (int i = 0; i < peers.size(); i++) matched[i + 1] = peers.get(i).matchSeq;
+        Arrays.sort(matched);
+        long committed = matched[matched.length - majority()];
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        synchronized (pendingCommits) {
+            if (committed <= commitSeq) return;
+            commitSeq = committed;
+            SortedMap<Long, CompletableFuture<Void>> head = pendingCommits.headMap(committed, true);
+            done.addAll(head.values());
+            head.clear();
+        }
+        done.forEach(f -> f.complete(null));
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("self", self);
+        status.put("role", role);
+        status.put("term", term);
+        status.put("leader", leader());
+        status.put("lastSeq", namingServer.lastSeq());
+        status.put("lastTerm", namingServer.lastTerm());
+        synchronized (pendingCommits) {
+            status.put("commitSeq", commitSeq);
+        }
+        List<Map<String, Object>> peerStatus = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Peer p : peers) {
+            Map<String, Object> ps = new LinkedHashMap<>();
+            ps.put("url", p.url);
+            ps.put("matchSeq", p.matchSeq);
+            ps.put("lastAckMsAgo", p.lastAck == 0 ? null : now - p.lastAck);
+            peerStatus.add(ps);
+        }
+        status.put("peers", peerStatus);
+        return status;
+    }
+}
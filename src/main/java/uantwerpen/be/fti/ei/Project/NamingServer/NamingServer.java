@@ -1,301 +1,869 @@
 package uantwerpen.be.fti.ei.Project.NamingServer;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.context.annotation.Profile;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
 import uantwerpen.be.fti.ei.Project.replication.FileReplicator;
 import uantwerpen.be.fti.ei.Project.storage.FileStorage;
 import uantwerpen.be.fti.ei.Project.storage.JsonService;
+import uantwerpen.be.fti.ei.Project.storage.MutationLog;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Component
 @Profile("namingserver")
 public class NamingServer {
     @Autowired
-    private RestTemplate restTemplate;
+    private PeerClient peerClient;
 
-    private final TreeMap<Integer, Node> nodeMap;
-    private final Map<String, Set<String>> storedFiles;
+    private static final Duration NEIGHBOUR_UPDATE_TIMEOUT = Duration.ofSeconds(5);
 
-    public NamingServer() {
+    @Value("${namingserver.wal.snapshot-every:10000}")
+    private long snapshotEvery;
+
+    @Value("${namingserver.ring.vnodes:1}")
+    private int vnodes;
+
+    @Value("${namingserver.rebalance.workers:4}")
+    private int rebalanceWorkers;
+
+    @Value("${namingserver.rebalance.files-per-sec:0}")
+    private long rebalanceFilesPerSec;
+
+    @Value("${namingserver.rebalance.bytes-per-sec:0}")
+    private long rebalanceBytesPerSec;
+
+    @Value("${namingserver.rebalance.max-retries:3}")
+    private int rebalanceMaxRetries;
+
+    // copies of every file, the owner's included; overrides are "glob=N" pairs, first match wins
+    @Value("${namingserver.replication.factor:2}")
+    private int replicationFactor;
+
+    @Value("${namingserver.replication.overrides:}")
+    private String replicationOverrides;
+
+    // bounded-load placement: no new files for a node above factor x the average load (<= 1 turns it off)
+    @Value("${namingserver.placement.load-factor:1.25}")
+    private double loadFactor;
+
+    @Value("${namingserver.placement.min-free-bytes:0}")
+    private long minFreeBytes;
+
+    // inbound rates under this never count as busy, a single transfer would otherwise flag a quiet node
+    @Value("${namingserver.placement.min-inbound-bytes-per-sec:1048576}")
+    private double minInboundBytesPerSec;
+
+    @Value("${namingserver.placement.report-ttl-ms:15000}")
+    private long loadReportTtlMs;
+
+    private NodeLoads loads;
+
+    private ReplicationPolicy policy;
+
+    private Rebalancer rebalancer;
+    private final Timer planTimer = Metrics.timer("rebalance.plan");
+
+    private final TreeMap<Long, Node> nodeMap;
+    // replaced wholesale when a follower installs the leader's snapshot
+    private volatile FileCatalog catalog;
+    // term of the last logged entry, compared in leader elections
+    private volatile long lastTerm;
+    // set by NamingCluster once it is up
+    private volatile NamingCluster cluster;
+
+    // read without locking by the lookup paths, replaced only when membership changes
+    private volatile RingSnapshot ring = RingSnapshot.EMPTY;
+    // membership epoch, bumped with every published ring. Starts from the clock so it keeps growing
+    // across restarts and a node's cached epoch never looks newer than the current one.
+    private long epoch = System.currentTimeMillis();
+    private final List<Consumer<RingSnapshot>> ringListeners = new CopyOnWriteArrayList<>();
+
+    // every mutation goes to the log; the JSON files are only rewritten as periodic snapshots
+    private final MutationLog mutationLog;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "naming-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private boolean compacting;
+    // bumped when a follower's state is replaced wholesale, so a running catalog check knows its copy is stale
+    private long snapshotInstalls;
+
+    // suspects currently being confirmed, so both neighbours reporting one failure cost a single check
+    private final Set<Long> confirming = ConcurrentHashMap.newKeySet();
+    // rotates read lookups over the copies of a file
+    private final AtomicInteger readCursor = new AtomicInteger();
+
+    public NamingServer(@Value("${ring.hash:murmur3}") String ringHash) {
+        // before anything is loaded: the catalog hashes file names as it is built
+        HashingUtil.use(ringHash);
+        String storedHash = JsonService.loadRingHash();
+        // last snapshot + everything logged after it; node keys still use the hash they were logged with
         this.nodeMap = JsonService.loadFromJson();
-        this.storedFiles = JsonService.loadStoredFiles();
+        this.catalog = FileCatalog.of(JsonService.loadStoredFiles(), JsonService.loadFileOwners());
+        long[] meta = JsonService.loadMeta();
+        this.lastTerm = meta[1];
+        long lastSeq = Math.max(meta[0], MutationLog.replay(JsonService.WAL_DIR, meta[0], e -> {
+            apply(e, nodeMap, catalog);
+            if (e.term != null) lastTerm = e.term;
+        }));
+        try {
+            this.mutationLog = new MutationLog(JsonService.WAL_DIR, lastSeq);
+        } catch (IOException e) {
+            throw new RuntimeException("Naming server log initialization failed", e);
+        }
+        String current = HashingUtil.strategy().name();
+        boolean fresh = lastSeq == 0 && nodeMap.isEmpty() && catalog.fileCount() == 0;
+        if (storedHash == null && fresh) {
+            JsonService.saveMeta(0, lastTerm, current);
+        } else if (!current.equals(storedHash == null ? LegacyHash.NAME : storedHash)) {
+            migrateRingHash(storedHash == null ? LegacyHash.NAME : storedHash, lastSeq);
+        }
+        System.out.println("Loaded naming state: " + nodeMap.size() + " node(s), WAL at seq " + lastSeq);
+    }
+
+    // re-keys the nodes with the configured hash and snapshots the result right away, so the log written
+    // with the old keys is never replayed again. The file placement is fixed up by the one full
+    // rebalance every leader runs when it takes over.
+    private void migrateRingHash(String from, long lastSeq) {
+        List<Node> nodes = new ArrayList<>(nodeMap.values());
+        nodeMap.clear();
+        for (Node node : nodes) {
+            long id = HashingUtil.generateHash(node.getNodeName());
+            if (nodeMap.containsKey(id)) {
+                System.err.println("Ring hash migration: " + node.getNodeName() + " collides with "
+                        + nodeMap.get(id).getNodeName() + ", dropped");
+                continue;
+            }
+            node.setCurrentID(id);
+            nodeMap.put(id, node);
+        }
+        updateRingPointers();
+        String to = HashingUtil.strategy().name();
+        if (!(JsonService.saveToJson(nodeMap) && JsonService.saveStoredFiles(catalog.copyByNode())
+                && JsonService.saveFileOwners(catalog.copyOwners()) && JsonService.saveMeta(lastSeq, lastTerm, to))) {
+            throw new IllegalStateException("Ring hash migration from " + from + " to " + to + " not persisted");
+        }
+        mutationLog.resetTo(lastSeq).join();
+        System.out.println("Migrated ring hash " + from + " -> " + to + ": " + nodeMap.size()
+                + " node(s) re-keyed, " + catalog.fileCount() + " file(s) rebalance on takeover");
     }
 
     @PostConstruct
     public void init() {
+        policy = new ReplicationPolicy(replicationFactor, replicationOverrides);
+        loads = new NodeLoads(loadFactor, minFreeBytes, minInboundBytesPerSec, loadReportTtlMs);
+        Gauge.builder("placement.overloaded", this, ns -> ns.ring.overloaded().size()).register(Metrics.globalRegistry);
+        rebalancer = new Rebalancer(rebalanceWorkers, rebalanceFilesPerSec, rebalanceBytesPerSec, rebalanceMaxRetries,
+                fileName -> ring.ringOwnerOf(catalog.hashOf(fileName)), this::completeMove);
         updateRingPointers();
-        redistributeFiles();
-        startFailureDetection();
-    }
-
-    public synchronized boolean addNode(String nodeName, String ipAddress) {
-        int hash = HashingUtil.generateHash(nodeName);
-        if (nodeMap.containsKey(hash)) return false;
-        Node n = new Node();
-        n.setCurrentID(hash);
-        n.setNodeName(nodeName);
-        n.setIpAddress(ipAddress);
-        nodeMap.put(hash, n);
-        saveNodeMap();
-        updateRingPointers();
-        storedFiles.putIfAbsent(ipAddress, new HashSet<>());
-        redistributeFiles();
-        saveFileMap();
+        publishRing();
+    }
+
+    void attach(NamingCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // a new leader (or the only instance, at startup) finishes whatever moves were left behind
+    void leadershipAcquired() {
+        synchronized (this) {
+            loads.reset();
+            redistributeFiles();
+        }
+    }
+
+    // moves still queued could no longer be logged; the next leader plans them again from its own catalog
+    void leadershipLost() {
+        rebalancer.cancel();
+    }
+
+    // result of a membership write. UNCHANGED: nothing to do (node already there, or unknown).
+    // NOT_PERSISTED: applied here but not on disk, or in a cluster not on a majority, so the caller must not
+    // report success
+    public enum Outcome { APPLIED, UNCHANGED, NOT_PERSISTED }
+
+    public Outcome addNode(String nodeName, String ipAddress) {
+        CompletableFuture<Void> durable;
+        List<long[]> arcs;
+        synchronized (this) {
+            long hash = HashingUtil.generateHash(nodeName);
+            if (nodeMap.containsKey(hash)) return Outcome.UNCHANGED;
+            record(MutationLog.Entry.addNode(hash, nodeName, ipAddress));
+            updateRingPointers();
+            publishRing();
+            // the newcomer only takes over its own arcs
+            arcs = ring.arcsOf(hash);
+            durable = lastWrite;
+        }
+        if (!awaitDurable(durable)) return Outcome.NOT_PERSISTED;
+        redistributeCommitted(arcs);
         System.out.println("Node added: " + nodeName + " -> " + ipAddress);
-        return true;
+        return Outcome.APPLIED;
     }
 
-    public synchronized boolean removeNode(int hash) {
+    public Outcome removeNode(long hash) {
+        CompletableFuture<Void> durable;
+        List<CompletableFuture<?>> notifications = new ArrayList<>();
+        List<long[]> freedArcs;
+        synchronized (this) {
+            freedArcs = removeNodeLocked(hash, notifications);
+            if (freedArcs == null) return Outcome.UNCHANGED;
+            durable = lastWrite;
+        }
+        // neighbour updates were only fired under the monitor; collect them outside it
+        peerClient.awaitAll(notifications, NEIGHBOUR_UPDATE_TIMEOUT);
+        if (!awaitDurable(durable)) return Outcome.NOT_PERSISTED;
+        redistributeCommitted(freedArcs);
+        System.out.println("Node removed: " + hash);
+        return Outcome.APPLIED;
+    }
+
+    // the arcs the removed node owned, null if it is unknown
+    private List<long[]> removeNodeLocked(long hash, List<CompletableFuture<?>> notifications) {
         Node doomed = nodeMap.get(hash);
-        if (doomed == null) return false;
+        if (doomed == null) return null;
 
-        int prevKey = doomed.getPreviousID();
-        int nextKey = doomed.getNextID();
+        long prevKey = doomed.getPreviousID();
+        long nextKey = doomed.getNextID();
         Node prev = nodeMap.get(prevKey);
         Node next = nodeMap.get(nextKey);
 
         // update pointers
-        if (prev != null) prev.setNextID(nextKey);
-        if (next != null) next.setPreviousID(prevKey);
-        nodeMap.remove(hash);
+        if (prev != null) record(MutationLog.Entry.setNext(prevKey, nextKey));
+        if (next != null) record(MutationLog.Entry.setPrevious(nextKey, prevKey));
+        record(MutationLog.Entry.removeNode(hash));
+        List<long[]> freedArcs = ring.arcsOf(hash);
+        publishRing();
 
         // let neighbours know
-        RestTemplate rt = new RestTemplate();
-        try {
-            if (prev != null) {
-                rt.postForObject("http://" + prev.getIpAddress() + ":8081/api/bootstrap/update", // Update the previous node with a new next
-                        Map.of("updatedField", 2,          // updateNext
-                                "nodeID",       nextKey),   // new next
-                        Void.class);
-            }
-            if (next != null) {
-                rt.postForObject("http://" + next.getIpAddress() + ":8081/api/bootstrap/update", // Update the next node with a new previous
-                        Map.of("updatedField", 1,          // updatePrevious
-                                "nodeID",       prevKey),   // new previous
-                        Void.class);
-            }
-        } catch (Exception e) {
-            System.err.println("⚠️  neighbour-update failed: " + e.getMessage());
+        if (prev != null) {
+            notifications.add(peerClient.postAsync("http://" + prev.getIpAddress() + ":8081/api/bootstrap/update", // Update the previous node with a new next
+                    Map.of("updatedField", 2,          // updateNext
+                            "nodeID",       nextKey),   // new next
+                    Void.class));
+        }
+        if (next != null) {
+            notifications.add(peerClient.postAsync("http://" + next.getIpAddress() + ":8081/api/bootstrap/update", // Update the next node with a new previous
+                    Map.of("updatedField", 1,          // updatePrevious
+                            "nodeID",       prevKey),   // new previous
+                    Void.class));
         }
-
 
         String ip = doomed.getIpAddress();
-        storedFiles.remove(ip);
-        saveNodeMap();
-        redistributeFiles();
-        saveFileMap();
-        System.out.println("Node removed: " + hash);
-        return true;
+        record(MutationLog.Entry.dropFiles(ip));
+        return freedArcs;
     }
 
-    public synchronized boolean storeFile(String fileName) {
-        int fileHash = HashingUtil.generateHash(fileName);
-        String ip = findResponsibleNode(fileHash);
-        if (ip == null) return false;
-        try {
-            FileStorage.storeFile(ip, fileName, "Content: " + fileName);
-            storedFiles.get(ip).add(fileName);
-            saveFileMap();
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    public boolean storeFile(String fileName) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            long fileHash = HashingUtil.generateHash(fileName);
+            String ip = findResponsibleNode(fileHash);
+            if (ip == null) return false;
+            try {
+                FileStorage.storeFile(ip, fileName, "Content: " + fileName);
+                record(MutationLog.Entry.addFile(ip, fileName, true));
+                durable = lastWrite;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
         }
+        return awaitDurable(durable);
+    }
+
+    public String findFileLocation(String fileName) {
+        long fileHash = HashingUtil.generateHash(fileName);
+        String ip = ring.ringOwnerOf(fileHash);
+        if (ip == null) return null;
+        if (catalog.holds(ip, fileName)) return ip;
+        // placed while the ring owner was over the load bound, it stays where it went
+        String owner = catalog.ownerOf(fileName);
+        return owner != null && catalog.holds(owner, fileName) ? owner : null;
     }
 
-    public synchronized String findFileLocation(String fileName) {
-        int fileHash = HashingUtil.generateHash(fileName);
-        String ip = findResponsibleNode(fileHash);
-        if (ip == null || !storedFiles.getOrDefault(ip, Set.of()).contains(fileName)) return null;
-        return ip;
+    private String findResponsibleNode(long hash) {
+        return ring.ownerOf(hash);
     }
 
-    private String findResponsibleNode(int hash) {
-        if (nodeMap.isEmpty()) return null;
-        Integer key = nodeMap.ceilingKey(hash);
-        if (key == null) key = nodeMap.firstKey();
-        return nodeMap.get(key).getIpAddress();
+    // caller holds the monitor
+    private void publishRing() {
+        RingSnapshot published = RingSnapshot.of(nodeMap, vnodes, ++epoch);
+        ring = published;
+        for (Consumer<RingSnapshot> listener : ringListeners) listener.accept(published);
+    }
+
+    public RingSnapshot getRing() { return ring; }
+
+    // called under the monitor with every new ring; listeners must only hand it off
+    public void addRingListener(Consumer<RingSnapshot> listener) {
+        ringListeners.add(listener);
+    }
+
+    // what a node needs to place files itself: the ring points plus the replication policy
+    public Map<String, Object> compactRing(RingSnapshot snapshot) {
+        Map<String, Object> compact = snapshot.toCompact();
+        compact.put("replicationFactor", policy.factor());
+        compact.put("replicationOverrides", policy.overrides());
+        compact.put("hash", HashingUtil.strategy().name());
+        return compact;
     }
 
     private void updateRingPointers() {
         if (nodeMap.isEmpty()) return;
-        List<Integer> keys = new ArrayList<>(nodeMap.keySet());
+        List<Long> keys = new ArrayList<>(nodeMap.keySet());
         Collections.sort(keys);
         int n = keys.size();
         for (int i = 0; i < n; i++) {
-            int id = keys.get(i);
-            int prev = keys.get((i - 1 + n) % n);
-            int next = keys.get((i + 1) % n);
+            long id = keys.get(i);
+            long prev = keys.get((i - 1 + n) % n);
+            long next = keys.get((i + 1) % n);
             Node node = nodeMap.get(id);
             node.setPreviousID(prev);
             node.setNextID(next);
         }
     }
 
+    // full pass, only needed at startup when the ring may have changed while we were down
     private void redistributeFiles() {
-        Map<String, Set<String>> toMove = new HashMap<>();
-
-        for (var entry : storedFiles.entrySet()) {
-            String ip = entry.getKey();
-            for (String f : entry.getValue()) {
-                int h = HashingUtil.generateHash(f);
-                String target = findResponsibleNode(h);
-                if (!Objects.equals(target, ip)) {
-                    toMove.computeIfAbsent(ip, k -> new HashSet<>()).add(f);
-                }
-            }
+        redistributeFiles(List.of(new long[]{0, 0}));
+    }
+
+    // a join or leave only changes the owner of the changed node's arcs, so only scan those.
+    // The moves themselves run on the rebalancer, so the caller does not wait for any file I/O.
+    private void redistributeFiles(List<long[]> arcs) {
+        List<Rebalancer.Move> moves = planTimer.record(() -> Rebalancer.plan(catalog, ring, arcs, FileStorage::fileExists));
+        if (!moves.isEmpty()) {
+            System.out.println("Rebalancing " + moves.size() + " file(s) in the background");
+            rebalancer.submit(moves);
         }
+    }
+
+    // files only start moving once the membership change is durable (on a majority in a cluster), and only
+    // while this instance still leads, since the moves are logged as they complete. The plan follows the
+    // ring as it is by then.
+    private synchronized void redistributeCommitted(List<long[]> arcs) {
+        NamingCluster c = cluster;
+        if (c != null && !c.isLeader()) return;
+        redistributeFiles(arcs);
+    }
 
-        toMove.forEach((src, files) -> {
-            for (String f : files) {
-                String dst = findResponsibleNode(HashingUtil.generateHash(f));
-                Path sourcePath = Paths.get("nodes_storage/" + src + "/" + f);
-                Path targetPath = Paths.get("nodes_storage/" + dst + "/" + f);
+    // called by a rebalance worker once a file has physically moved, so the catalog follows file by file.
+    // Throws when the catalog change is not persisted; the rebalancer counts the move as failed.
+    private void completeMove(String fileName, String source, String target) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            if (catalog.holds(source, fileName)) record(MutationLog.Entry.removeFile(source, fileName));
+            record(MutationLog.Entry.addFile(target, fileName, true));
+            durable = lastWrite;
+        }
+        if (!awaitDurable(durable)) throw new IllegalStateException("move of " + fileName + " not persisted");
+        System.out.println("Files redistributed: " + fileName + " van " + source + " → " + target);
+    }
 
-                if (Files.exists(sourcePath)) {
-                    try {
-                        Files.createDirectories(targetPath.getParent());
-                        Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+    public Map<String, Object> getRebalanceProgress() {
+        return rebalancer.progress();
+    }
 
-                        storedFiles.get(src).remove(f);
-                        storedFiles.computeIfAbsent(dst, k -> new HashSet<>()).add(f);
+    public Outcome handleNodeFailure(long failedHash, String failedIp) {
+        CompletableFuture<Void> durable;
+        List<CompletableFuture<?>> notifications = new ArrayList<>();
+        List<long[]> freedArcs;
+        synchronized (this) {
+            if (!nodeMap.containsKey(failedHash)) return Outcome.UNCHANGED;
+            Map.Entry<Long, Node> prev = nodeMap.lowerEntry(failedHash);
+            Map.Entry<Long, Node> next = nodeMap.higherEntry(failedHash);
+            if (prev == null) prev = nodeMap.lastEntry();
+            if (next == null) next = nodeMap.firstEntry();
+            record(MutationLog.Entry.setNext(prev.getKey(), next.getKey()));
+            record(MutationLog.Entry.setPrevious(next.getKey(), prev.getKey()));
+            record(MutationLog.Entry.removeNode(failedHash));
+            record(MutationLog.Entry.dropFiles(failedIp));
+            freedArcs = ring.arcsOf(failedHash);
+            publishRing();
+            notifications.add(peerClient.postAsync("http://" + prev.getValue().getIpAddress() + ":8081/api/bootstrap/update",
+                    Map.of("updatedField", 2, "nodeID", next.getKey()), Void.class));
+            notifications.add(peerClient.postAsync("http://" + next.getValue().getIpAddress() + ":8081/api/bootstrap/update",
+                    Map.of("updatedField", 1, "nodeID", prev.getKey()), Void.class));
+            durable = lastWrite;
+        }
+        peerClient.awaitAll(notifications, NEIGHBOUR_UPDATE_TIMEOUT);
+        if (!awaitDurable(durable)) return Outcome.NOT_PERSISTED;
+        redistributeCommitted(freedArcs);
+        System.out.println("Handled failure of " + failedIp);
+        return Outcome.APPLIED;
+    }
 
-                        System.out.println("Files redistributed: " + f + " van " + src + " → " + dst);
-                    } catch (IOException e) {
-                        System.err.println("Error redistribution of files: " + f);
-                        e.printStackTrace();
-                    }
+    // failures are detected by the nodes themselves (ring neighbours heartbeat each other); a report
+    // is confirmed with one health check before the node is removed
+    public boolean reportFailure(long hash, long reporterId) {
+        String ip;
+        synchronized (this) {
+            Node suspect = nodeMap.get(hash);
+            if (suspect == null) return false;
+            ip = suspect.getIpAddress();
+        }
+        if (!confirming.add(hash)) return true;
+        System.out.println("Node " + hash + " (" + ip + ") reported down by " + reporterId + ", confirming");
+        Thread.ofVirtual().name("confirm-failure-" + hash).start(() -> {
+            try {
+                if (isAlive(ip)) {
+                    System.out.println("Node " + ip + " answers health checks, ignoring report");
                 } else {
-                    System.err.println(" File not found for redistribution: " + sourcePath);
+                    System.out.println("Node failure detected: " + ip);
+                    if (handleNodeFailure(hash, ip) == Outcome.NOT_PERSISTED) {
+                        System.err.println("Removal of failed node " + ip + " not persisted, the next report retries it");
+                    }
                 }
+            } finally {
+                confirming.remove(hash);
             }
         });
+        return true;
+    }
 
-        saveFileMap();
+    // nodes report free disk, stored bytes and inbound replication rate every few seconds; when that
+    // moves a node across the load bound the flag is logged and a new ring is published, so every
+    // instance and every node's ring cache skips it for new files. Files already placed stay put.
+    public boolean reportLoad(long hash, NodeLoads.Report report) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            if (!nodeMap.containsKey(hash)) return false;
+            loads.report(hash, report);
+            Map<Long, Boolean> changes = loads.evaluate(nodeMap);
+            if (changes.isEmpty()) return true;
+            changes.forEach((id, overloaded) -> {
+                record(MutationLog.Entry.setOverloaded(id, overloaded));
+                System.out.println("Node " + nodeMap.get(id).getNodeName() + (overloaded
+                        ? " is over the load bound, no new files" : " is back under the load bound"));
+            });
+            publishRing();
+            durable = lastWrite;
+        }
+        return awaitDurable(durable);
     }
 
-    public synchronized void handleNodeFailure(int failedHash, String failedIp) {
-        if (!nodeMap.containsKey(failedHash)) return;
-        Map.Entry<Integer, Node> prev = nodeMap.lowerEntry(failedHash);
-        Map.Entry<Integer, Node> next = nodeMap.higherEntry(failedHash);
-        if (prev == null) prev = nodeMap.lastEntry();
-        if (next == null) next = nodeMap.firstEntry();
-        prev.getValue().setNextID(next.getKey());
-        next.getValue().setPreviousID(prev.getKey());
-        nodeMap.remove(failedHash);
-        storedFiles.remove(failedIp);
-        RestTemplate rt = new RestTemplate();
+    private boolean isAlive(String ip) {
         try {
-            rt.postForObject("http://" + prev.getValue().getIpAddress() + ":8081/api/bootstrap/update",
-                    Map.of("updatedField", 2, "nodeID", next.getKey()), Void.class);
-            rt.postForObject("http://" + next.getValue().getIpAddress() + ":8081/api/bootstrap/update",
-                    Map.of("updatedField", 1, "nodeID", prev.getKey()), Void.class);
-        } catch (Exception ignore) {}
-        saveNodeMap();
-        saveFileMap();
-        System.out.println("Handled failure of " + failedIp);
+            peerClient.getForObject("http://" + ip + ":8081/actuator/health", String.class);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
     }
 
-    private void startFailureDetection() {
-        Thread t = new Thread(() -> {
-            while (true) {
-                new HashMap<>(nodeMap).forEach((hash, node) -> {
-                    if (!isAlive(node.getIpAddress())) {
-                        System.out.println("Node failure detected: " + node.getIpAddress());
-                        handleNodeFailure(hash, node.getIpAddress());
-                    }
-                });
-                try { Thread.sleep(30000); } catch (InterruptedException ignored) {}
+    // Persistence helpers
+    public Map<Long, Node> getNodeMap() { return nodeMap; }
+
+    public synchronized String getNodeAddress(long hash) {
+        Node node = nodeMap.get(hash);
+        return node == null ? null : node.getIpAddress();
+    }
+
+    public boolean updatePrevious(long hash, long previousID) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            if (!nodeMap.containsKey(hash)) return false;
+            record(MutationLog.Entry.setPrevious(hash, previousID));
+            durable = lastWrite;
+        }
+        return awaitDurable(durable);
+    }
+
+    public boolean updateNext(long hash, long nextID) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            if (!nodeMap.containsKey(hash)) return false;
+            record(MutationLog.Entry.setNext(hash, nextID));
+            durable = lastWrite;
+        }
+        return awaitDurable(durable);
+    }
+
+    // applies a mutation in memory and appends it to the log; caller holds the monitor.
+    // In a cluster the write is only done once a majority of the instances has logged it.
+    private void record(MutationLog.Entry e) {
+        NamingCluster c = cluster;
+        if (c != null && !c.isLeader()) throw new IllegalStateException("not the naming leader");
+        e.term = c == null ? lastTerm : c.term();
+        apply(e, nodeMap, catalog);
+        CompletableFuture<Void> local = mutationLog.append(e);
+        lastTerm = e.term;
+        lastWrite = c == null ? local : local.thenCombine(c.replicate(e), (a, b) -> null);
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        if (!compacting && mutationLog.entriesSinceRotation() >= snapshotEvery) {
+            compacting = true;
+            scheduleSnapshot();
+        }
+    }
+
+    public long lastSeq() { return mutationLog.lastSeq(); }
+
+    public long lastTerm() { return lastTerm; }
+
+    // follower side: the leader's entries, applied and logged under the leader's numbers
+    public CompletableFuture<Void> applyReplicated(List<MutationLog.Entry> entries) {
+        synchronized (this) {
+            long expected = mutationLog.lastSeq() + 1;
+            for (MutationLog.Entry e : entries) {
+                if (e.seq != expected++) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("gap in replicated log at " + e.seq));
+                }
             }
-        });
-        t.setDaemon(true);
-        t.start();
+            boolean ringChanged = false;
+            for (MutationLog.Entry e : entries) {
+                apply(e, nodeMap, catalog);
+                lastWrite = mutationLog.appendReplicated(e);
+                lastTerm = e.term == null ? 0 : e.term;
+                ringChanged |= e.op.endsWith("_NODE") || e.op.equals("SET_OVERLOADED");
+            }
+            if (ringChanged) {
+                updateRingPointers();
+                publishRing();
+            }
+            maybeCompact();
+            return lastWrite;
+        }
     }
 
-    private boolean isAlive(String ip) {
+    // the whole naming state at one log position, for a follower that cannot catch up from the log
+    public synchronized NamingCluster.StateSnapshot stateSnapshot(long term, String leader) {
+        List<NamingCluster.NodeEntry> nodes = new ArrayList<>();
+        nodeMap.forEach((hash, n) -> nodes.add(new NamingCluster.NodeEntry(
+                hash, n.getNodeName(), n.getIpAddress(), n.getPreviousID(), n.getNextID(), n.isOverloaded())));
+        return new NamingCluster.StateSnapshot(term, leader, mutationLog.lastSeq(), lastTerm, nodes,
+                catalog.copyByNode(), catalog.copyOwners());
+    }
+
+    // replaces the local state with the leader's; the log restarts right after the snapshot
+    public void installSnapshot(NamingCluster.StateSnapshot snapshot) {
+        CompletableFuture<Void> reset;
+        synchronized (this) {
+            snapshotInstalls++;
+            nodeMap.clear();
+            for (NamingCluster.NodeEntry e : snapshot.nodes()) {
+                Node n = new Node();
+                n.setCurrentID(e.hash());
+                n.setNodeName(e.name());
+                n.setIpAddress(e.ip());
+                n.setPreviousID(e.previous());
+                n.setNextID(e.next());
+                n.setOverloaded(e.overloaded());
+                nodeMap.put(e.hash(), n);
+            }
+            catalog = FileCatalog.of(snapshot.files(), snapshot.owners());
+            lastTerm = snapshot.lastTerm();
+            JsonService.saveToJson(nodeMap);
+            JsonService.saveStoredFiles(snapshot.files());
+            JsonService.saveFileOwners(snapshot.owners());
+            JsonService.saveMeta(snapshot.seq(), snapshot.lastTerm(), HashingUtil.strategy().name());
+            reset = mutationLog.resetTo(snapshot.seq());
+            lastWrite = reset;
+            updateRingPointers();
+            publishRing();
+        }
+        awaitDurable(reset);
+        System.out.println("Installed naming snapshot at seq " + snapshot.seq() + " (" + nodeMap.size() + " node(s))");
+    }
+
+    // also used for replay, so it must not log or touch anything outside the given state
+    private static void apply(MutationLog.Entry e, TreeMap<Long, Node> nodeMap, FileCatalog catalog) {
+        switch (e.op) {
+            case "ADD_NODE" -> {
+                Node n = new Node();
+                n.setCurrentID(e.hash);
+                n.setNodeName(e.nodeName);
+                n.setIpAddress(e.ip);
+                nodeMap.put(e.hash, n);
+                catalog.addNode(e.ip);
+            }
+            case "REMOVE_NODE" -> nodeMap.remove(e.hash);
+            case "SET_PREVIOUS" -> {
+                Node n = nodeMap.get(e.hash);
+                if (n != null) n.setPreviousID(e.id);
+            }
+            case "SET_NEXT" -> {
+                Node n = nodeMap.get(e.hash);
+                if (n != null) n.setNextID(e.id);
+            }
+            case "ADD_FILE" -> catalog.add(e.ip, e.file, Boolean.TRUE.equals(e.owner));
+            case "REMOVE_FILE" -> catalog.remove(e.ip, e.file);
+            case "DROP_FILES" -> catalog.dropNode(e.ip);
+            case "SET_OVERLOADED" -> {
+                Node n = nodeMap.get(e.hash);
+                if (n != null) n.setOverloaded(Boolean.TRUE.equals(e.overloaded));
+            }
+            default -> System.err.println("Unknown WAL operation: " + e.op);
+        }
+    }
+
+    // group commit: callers wait for the fsync outside the monitor, so concurrent writers share one
+    private boolean awaitDurable(CompletableFuture<Void> write) {
         try {
-            restTemplate.getForEntity("http://" + ip + ":8081/actuator/health", String.class);
+            write.join();
             return true;
         } catch (Exception e) {
+            System.err.println("Naming state not persisted: " + e.getMessage());
             return false;
         }
     }
 
-    // Persistence helpers
-    public Map<Integer, Node> getNodeMap() { return nodeMap; }
-    public void saveNodeMap() { JsonService.saveToJson(nodeMap); }
-    public void saveFileMap() { JsonService.saveStoredFiles(storedFiles); }
+    // copy the state under the monitor, write it off-thread, then drop the log segments it covers
+    private void scheduleSnapshot() {
+        TreeMap<Long, Node> nodes = new TreeMap<>();
+        nodeMap.forEach((hash, node) -> {
+            Node copy = new Node();
+            copy.setCurrentID(node.getCurrentID());
+            copy.setPreviousID(node.getPreviousID());
+            copy.setNextID(node.getNextID());
+            copy.setNodeName(node.getNodeName());
+            copy.setIpAddress(node.getIpAddress());
+            copy.setOverloaded(node.isOverloaded());
+            nodes.put(hash, copy);
+        });
+        Map<String, Set<String>> files = catalog.copyByNode();
+        Map<String, String> owners = catalog.copyOwners();
+        long term = lastTerm;
+        CompletableFuture<Long> rotated = mutationLog.rotate();
+
+        compactor.submit(() -> {
+            try {
+                if (JsonService.saveToJson(nodes) && JsonService.saveStoredFiles(files)
+                        && JsonService.saveFileOwners(owners) && JsonService.saveMeta(rotated.join() - 1, term, HashingUtil.strategy().name())) {
+                    mutationLog.deleteSegmentsBefore(rotated.join());
+                    System.out.println("Naming snapshot written (" + files.size() + " node catalog(s))");
+                }
+            } finally {
+                synchronized (NamingServer.this) {
+                    compacting = false;
+                    NamingServer.this.notifyAll();
+                }
+            }
+        });
+    }
 
-    public synchronized String getNodeForReplication(int hash) {
-        if (nodeMap.isEmpty() || nodeMap.size() == 1) {
+    @PreDestroy
+    public void shutdown() {
+        rebalancer.shutdown();
+        compactor.shutdown();
+        mutationLog.close();
+    }
+
+    public String getNodeForReplication(long hash) {
+        RingSnapshot current = ring;
+        if (current.physicalNodes() < 2) {
             return null;
         }
 
-        // find owner of the file
-        Map.Entry<Integer, Node> ownerEntry = nodeMap.ceilingKey(hash) != null
-                ? nodeMap.ceilingEntry(hash)
-                : nodeMap.firstEntry();
+        // owner's successor on the ring, skipping nodes that share the owner's address
+        String replica = current.replicaOf(hash);
+        if (replica == null) {
+            System.out.println("No fitting replica: everyone is owner");
+        }
+        return replica;
+    }
+
+    public int replicationFactorFor(String fileName) {
+        return policy.factorFor(fileName);
+    }
 
-        Node owner = ownerEntry.getValue();
-        Node replica = nodeMap.get(owner.getNextID());
+    // the nodes that should hold copies besides the ring owner, in preference order; one lock-free lookup
+    public List<String> getReplicaList(String fileName) {
+        return policy.replicasOf(ring, fileName);
+    }
 
-        // try new node for replication
-        int attempts = 0;
-        while (replica.getIpAddress().equals(owner.getIpAddress())) {
-            replica = nodeMap.get(replica.getNextID());
-            attempts++;
+    public Map<String, List<String>> getReplicaLists(List<String> fileNames) {
+        Map<String, List<String>> replicas = new LinkedHashMap<>();
+        for (String fileName : fileNames) replicas.put(fileName, getReplicaList(fileName));
+        return replicas;
+    }
+
+    public void registerFileReplication(String fileName, String ownerIp, String replicaIp) {
+        registerFileReplications(List.of(Map.of(
+                "fileName", fileName, "ownerIp", ownerIp, "replicaIp", replicaIp)));
+    }
 
-            if (attempts >= nodeMap.size()) {
-                System.out.println("No fitting replica: everyone is owner");
-                return null;
+    // one monitor hold and one fsync for the whole batch
+    public int registerFileReplications(List<Map<String, String>> replications) {
+        CompletableFuture<Void> durable;
+        int registered = 0;
+        synchronized (this) {
+            for (Map<String, String> r : replications) {
+                String fileName = r.get("fileName"), ownerIp = r.get("ownerIp"), replicaIp = r.get("replicaIp");
+                if (fileName == null || ownerIp == null) continue;
+                record(MutationLog.Entry.addFile(ownerIp, fileName, true));
+
+                if (replicaIp != null && !ownerIp.equals(replicaIp)) {
+                    record(MutationLog.Entry.addFile(replicaIp, fileName, false));
+                }
+                registered++;
             }
+            durable = lastWrite;
+        }
+        awaitDurable(durable);
+        return registered;
+    }
+
+    // replication target per hash, lock-free against one ring snapshot; hashes without a target are left out
+    public Map<Long, String> getNodesForReplication(List<Long> hashes) {
+        RingSnapshot current = ring;
+        Map<Long, String> targets = new LinkedHashMap<>();
+        for (long hash : hashes) {
+            String replica = current.replicaOf(hash);
+            if (replica != null) targets.put(hash, replica);
+        }
+        return targets;
+    }
+
+    public void removeFileReplica(String fileName, String replicaIp) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            // the named holder if it has the file, otherwise any holder (old behaviour)
+            String holder = catalog.holds(replicaIp, fileName) ? replicaIp
+                    : catalog.holders(fileName).stream().findFirst().orElse(null);
+            if (holder == null) return;
+            record(MutationLog.Entry.removeFile(holder, fileName));
+            durable = lastWrite;
         }
+        awaitDurable(durable);
+    }
 
-        return replica.getIpAddress();
+    // per physical node: how much of the hash space it owns and how many files it stores
+    public List<Map<String, Object>> getRingDistribution() {
+        RingSnapshot current = ring;
+        Map<Long, Double> ownership = current.ownership();
+        Map<Long, Integer> points = current.pointsPerNode();
+        List<Node> nodes;
+        synchronized (this) { nodes = new ArrayList<>(nodeMap.values()); }
+        List<Map<String, Object>> report = new ArrayList<>();
+        for (Node node : nodes) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("nodeName", node.getNodeName());
+            entry.put("ipAddress", node.getIpAddress());
+            entry.put("currentID", node.getCurrentID());
+            entry.put("vnodes", points.getOrDefault(node.getCurrentID(), 0));
+            entry.put("ownership", ownership.getOrDefault(node.getCurrentID(), 0.0));
+            entry.put("fileCount", catalog.filesOn(node.getIpAddress()).size());
+            entry.put("overloaded", current.overloaded().contains(node.getCurrentID()));
+            NodeLoads.Report load = loads.get(node.getCurrentID());
+            if (load != null) entry.put("load", load);
+            report.add(entry);
+        }
+        return report;
     }
 
-    public synchronized void registerFileReplication(String fileName, String ownerIp, String replicaIp) {
-        storedFiles.computeIfAbsent(ownerIp, k -> new HashSet<>()).add(fileName);
+    // owner first, then every other node holding a copy
+    public List<String> getFileLocations(String fileName) {
+        List<String> locations = new ArrayList<>();
+        String owner = catalog.ownerOf(fileName);
+        if (owner != null) locations.add(owner);
+        for (String ip : catalog.holders(fileName)) {
+            if (!ip.equals(owner)) locations.add(ip);
+        }
+        return locations;
+    }
 
-        if (!ownerIp.equals(replicaIp)) {
-            storedFiles.computeIfAbsent(replicaIp, k -> new HashSet<>()).add(fileName);
+    // every copy a client can read from: the holders that are still in the ring and not suspected down.
+    // The list starts at a different copy on each call, so clients that take the first entry spread
+    // their reads over owner and replicas; the rest is the fallback order.
+    public List<String> getReadReplicas(String fileName) {
+        List<String> copies = getFileLocations(fileName);
+        Set<String> live = new HashSet<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Node> e : nodeMap.entrySet()) {
+                if (!confirming.contains(e.getKey())) live.add(e.getValue().getIpAddress());
+            }
         }
-        saveFileMap();
+        copies.removeIf(ip -> !live.contains(ip));
+        if (copies.size() > 1) Collections.rotate(copies, -Math.floorMod(readCursor.getAndIncrement(), copies.size()));
+        return copies;
     }
 
-    public synchronized void removeFileReplica(String fileName) {
-        storedFiles.entrySet().stream()
-                .filter(e -> e.getValue().contains(fileName))
-                .findFirst()
-                .ifPresent(entry -> {
-                    entry.getValue().remove(fileName);
-                    saveFileMap();
-                });
+    // compares the in-memory catalog with itself and with what a restart would load from disk.
+    // Only the copies are taken under the monitor; loading the snapshot and replaying the log happen
+    // outside it, up to the copied seq, with compaction held off so neither changes underneath.
+    public List<String> verifyCatalog() {
+        List<String> problems;
+        FileCatalog memory;
+        Set<Long> nodes;
+        long seq, installs;
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            while (compacting) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return List.of("interrupted while waiting for a snapshot to finish");
+                }
+            }
+            compacting = true;
+            problems = catalog.verify(null);
+            memory = FileCatalog.of(catalog.copyByNode(), catalog.copyOwners());
+            nodes = new TreeSet<>(nodeMap.keySet());
+            seq = mutationLog.lastSeq();
+            installs = snapshotInstalls;
+            durable = lastWrite;
+        }
+        boolean replaced;
+        try {
+            // everything up to seq is on disk once this write is
+            awaitDurable(durable);
+            TreeMap<Long, Node> persistedNodes = JsonService.loadFromJson();
+            FileCatalog persisted = FileCatalog.of(JsonService.loadStoredFiles(), JsonService.loadFileOwners());
+            MutationLog.replay(JsonService.WAL_DIR, JsonService.loadMeta()[0], e -> {
+                if (e.seq <= seq) apply(e, persistedNodes, persisted);
+            });
+
+            problems.addAll(memory.verify(persisted));
+            if (!persistedNodes.keySet().equals(nodes)) {
+                problems.add("persisted nodes " + persistedNodes.keySet() + " differ from " + nodes);
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                notifyAll();
+                replaced = snapshotInstalls != installs;
+                maybeCompact();
+            }
+        }
+        return replaced ? List.of("naming state was replaced by a leader snapshot during the check, run it again") : problems;
     }
 
-    public List<Map<String, String>> getReplicatedFilesForNode(int hash) {
+    public List<Map<String, String>> getReplicatedFilesForNode(long hash) {
         List<Map<String, String>> replicatedFiles = new ArrayList<>();
 
         Node node = nodeMap.get(hash);
         if (node == null) return replicatedFiles;
 
         String ip = node.getIpAddress();
-        Set<String> files = storedFiles.getOrDefault(ip, Set.of());
-
-        for (String file : files) {
+        for (String file : catalog.filesOn(ip)) {
+            String owner = catalog.ownerOf(file);
             replicatedFiles.add(Map.of(
                     "fileName", file,
-                    "currentOwner", ip
+                    "currentOwner", owner != null ? owner : ip
             ));
         }
 
@@ -0,0 +1,91 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class NodeLoads {
+    // the latest load report of every node, kept by the leader only: it is rebuilt from the next
+    // round of reports, so it is neither logged nor replicated. Only the resulting overloaded flags are.
+    // A node is overloaded once its stored bytes or inbound rate pass factor x the average of the
+    // reporting nodes, or its free disk drops under the floor. It is cleared again once it is back
+    // under the average plus half the allowance, so a node near the bound does not flap.
+    public record Report(long freeBytes, long storedBytes, double inboundBytesPerSec, long receivedAt) {}
+
+    private final double factor;
+    private final long minFreeBytes;
+    private final double minInboundBytesPerSec;
+    private final long ttlMillis;
+    private final Map<Long, Report> reports = new ConcurrentHashMap<>();
+    // flags logged before this instance had reports of its own stay until the first round is in
+    private volatile long trackingSince = System.currentTimeMillis();
+
+    public NodeLoads(double factor, long minFreeBytes, double minInboundBytesPerSec, long ttlMillis) {
+        this.factor = factor;
+        this.minFreeBytes = minFreeBytes;
+        this.minInboundBytesPerSec = minInboundBytesPerSec;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // a factor of 1 or less leaves no room above the average at all, so it switches the bound off
+    public boolean enabled() {
+        return factor > 1;
+    }
+
+    public void report(long id, Report report) {
+        reports.put(id, report);
+    }
+
+    public Report get(long id) {
+        return reports.get(id);
+    }
+
+    // a new leader starts from nothing and waits for the nodes to report to it
+    public void reset() {
+        reports.clear();
+        trackingSince = System.currentTimeMillis();
+    }
+
+    // flags that have to change, node id -> new value; caller holds the naming server's monitor
+    public Map<Long, Boolean> evaluate(Map<Long, Node> nodes) {
+        long now = System.currentTimeMillis();
+        reports.keySet().retainAll(nodes.keySet());
+
+        double stored = 0, inbound = 0;
+        int fresh = 0;
+        for (Report r : reports.values()) {
+            if (now - r.receivedAt() > ttlMillis) continue;
+            stored += r.storedBytes();
+            inbound += r.inboundBytesPerSec();
+            fresh++;
+        }
+        double meanStored = fresh == 0 ? 0 : stored / fresh;
+        double meanInbound = fresh == 0 ? 0 : inbound / fresh;
+        double relaxed = (1 + factor) / 2;
+
+        Map<Long, Boolean> changes = new HashMap<>();
+        for (Node node : nodes.values()) {
+            boolean flagged = node.isOverloaded();
+            Report r = reports.get(node.getCurrentID());
+            boolean overloaded;
+            if (!enabled()) {
+                overloaded = false;
+            } else if (r == null || now - r.receivedAt() > ttlMillis) {
+                // nothing recent to go on: keep what the log says while warming up, otherwise clear
+                overloaded = flagged && now - trackingSince < ttlMillis;
+            } else if (flagged) {
+                overloaded = r.freeBytes() < minFreeBytes
+                        || r.storedBytes() > relaxed * meanStored
+                        || r.inboundBytesPerSec() > Math.max(relaxed * meanInbound, minInboundBytesPerSec);
+            } else {
+                overloaded = r.freeBytes() < minFreeBytes
+                        || r.storedBytes() > factor * meanStored
+                        || r.inboundBytesPerSec() > Math.max(factor * meanInbound, minInboundBytesPerSec);
+            }
+            if (overloaded != flagged) changes.put(node.getCurrentID(), overloaded);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,270 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import uantwerpen.be.fti.ei.Project.storage.FileStorage;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+public class Rebalancer {
+    // moves files in the background so membership changes return right away.
+    // A fixed set of workers drains the queue, throttled on files/s and bytes/s, and retries failed moves.
+
+    public record Move(String fileName, String source, String target, int attempt) {}
+
+    public interface MoveListener {
+        void moved(String fileName, String source, String target);
+    }
+
+    private final BlockingQueue<Move> queue = new LinkedBlockingQueue<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService retries;
+    private final Throttle fileThrottle;
+    private final Throttle byteThrottle;
+    private final int maxRetries;
+    private final Function<String, String> currentTarget;
+    private final MoveListener listener;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private volatile long jobStartedAt;
+    // set while a job has files left, so exactly one worker records the job's duration when it empties
+    private final AtomicBoolean jobOpen = new AtomicBoolean();
+    // bumped by cancel(), so retries scheduled before it do not come back
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong running = new AtomicLong();
+
+    private final Timer moveTimer = Metrics.timer("rebalance.move");
+    private final Timer jobTimer = Metrics.timer("rebalance.job");
+    private final Counter movedFiles = Metrics.counter("rebalance.files", "outcome", "moved");
+    private final Counter failedFiles = Metrics.counter("rebalance.files", "outcome", "failed");
+    private final Counter retriedFiles = Metrics.counter("rebalance.files", "outcome", "retried");
+    private final Counter movedBytes = Metrics.counter("rebalance.bytes");
+
+    public Rebalancer(int workerCount, long filesPerSec, long bytesPerSec, int maxRetries,
+                      Function<String, String> currentTarget, MoveListener listener) {
+        this.fileThrottle = new Throttle(filesPerSec);
+        this.byteThrottle = new Throttle(bytesPerSec);
+        this.maxRetries = maxRetries;
+        this.currentTarget = currentTarget;
+        this.listener = listener;
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rebalance-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        Gauge.builder("rebalance.remaining", this, Rebalancer::remaining).register(Metrics.globalRegistry);
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread t = new Thread(this::work, "rebalance-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    // moves that bring every file in the arcs ({fromExclusive, toInclusive}, {0, 0} is the whole ring) to
+    // its owner on the ring; present() tells whether a holder really has its copy on disk
+    static List<Move> plan(FileCatalog catalog, RingSnapshot ring, List<long[]> arcs,
+                           BiPredicate<String, String> present) {
+        List<Move> moves = new ArrayList<>();
+        for (long[] arc : arcs) {
+            for (String f : catalog.filesInRange(arc[0], arc[1])) {
+                String target = ring.ringOwnerOf(catalog.hashOf(f));
+                if (target == null) continue;
+                for (String ip : catalog.holders(f)) {
+                    if (!target.equals(ip) && present.test(ip, f)) {
+                        moves.add(new Move(f, ip, target, 0));
+                    }
+                }
+            }
+        }
+        return moves;
+    }
+
+    public void submit(Collection<Move> moves) {
+        if (moves.isEmpty()) return;
+        if (remaining() == 0) {
+            // previous job is done, start counting a new one
+            queued.set(0); moved.set(0); failed.set(0); retried.set(0); bytesMoved.set(0);
+            jobStartedAt = System.currentTimeMillis();
+            jobOpen.set(true);
+        }
+        for (Move m : moves) {
+            // a file that is already on its way does not need a second move
+            if (pending.add(key(m))) {
+                queued.incrementAndGet();
+                queue.add(m);
+            }
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Move m;
+            try {
+                m = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                execute(m);
+            } catch (InterruptedException e) {
+                pending.remove(key(m));
+                return;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    // every outcome settles the move's bookkeeping (moved, failed, retried or dropped), or the job never ends
+    private void execute(Move m) throws InterruptedException {
+        long start = System.nanoTime();
+        String target;
+        long size;
+        try {
+            // the ring may have changed since the move was planned: follow the owner as it is now
+            target = currentTarget.apply(m.fileName());
+            if (target == null || target.equals(m.source()) || !FileStorage.fileExists(m.source(), m.fileName())) {
+                pending.remove(key(m));
+                queued.decrementAndGet();
+                jobFinished();
+                return;
+            }
+            size = FileStorage.fileSize(m.source(), m.fileName());
+            fileThrottle.acquire(1);
+            byteThrottle.acquire(size);
+            FileStorage.moveFile(m.source(), target, m.fileName());
+        } catch (IOException | RuntimeException e) {
+            retryOrGiveUp(m, e);
+            return;
+        }
+        pending.remove(key(m));
+        try {
+            listener.moved(m.fileName(), m.source(), target);
+        } catch (RuntimeException e) {
+            // the file is on the target already, only the catalog missed it: a retry would find no source
+            failed.incrementAndGet();
+            failedFiles.increment();
+            System.err.println("Moved " + m.fileName() + " to " + target + " but could not record it: " + e.getMessage());
+            jobFinished();
+            return;
+        }
+        bytesMoved.addAndGet(size);
+        moved.incrementAndGet();
+        moveTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        movedFiles.increment();
+        movedBytes.increment(size);
+        jobFinished();
+    }
+
+    private void retryOrGiveUp(Move m, Exception e) {
+        if (m.attempt() < maxRetries) {
+            retried.incrementAndGet();
+            retriedFiles.increment();
+            long backoff = 500L << m.attempt();
+            Move again = new Move(m.fileName(), m.source(), m.target(), m.attempt() + 1);
+            long job = generation.get();
+            // a cancelled job's retries are dropped along with its queue
+            retries.schedule(() -> {
+                if (generation.get() == job) queue.add(again);
+            }, backoff, TimeUnit.MILLISECONDS);
+        } else {
+            pending.remove(key(m));
+            failed.incrementAndGet();
+            failedFiles.increment();
+            System.err.println("Giving up moving " + m.fileName() + " from " + m.source() + ": " + e.getMessage());
+            jobFinished();
+        }
+    }
+
+    // the naming leader stepped down: moves it can no longer log are dropped, the next leader plans its own.
+    // Moves already running finish (or fail to record) on their own.
+    public void cancel() {
+        generation.incrementAndGet();
+        List<Move> dropped = new ArrayList<>();
+        queue.drainTo(dropped);
+        pending.clear();
+        // the moves still running stay counted until they finish
+        queued.set(moved.get() + failed.get() + running.get());
+        jobFinished();
+        if (!dropped.isEmpty()) System.out.println("Rebalance: dropped " + dropped.size() + " queued move(s)");
+    }
+
+    private void jobFinished() {
+        if (remaining() == 0 && jobOpen.compareAndSet(true, false)) {
+            jobTimer.record(System.currentTimeMillis() - jobStartedAt, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long remaining() {
+        return Math.max(0, queued.get() - moved.get() - failed.get());
+    }
+
+    public Map<String, Object> progress() {
+        long done = moved.get();
+        long left = remaining();
+        double elapsed = jobStartedAt == 0 ? 0 : (System.currentTimeMillis() - jobStartedAt) / 1000.0;
+        double rate = elapsed > 0 ? done / elapsed : 0;
+        Map<String, Object> p = new LinkedHashMap<>();
+        p.put("state", left == 0 ? "idle" : "running");
+        p.put("filesQueued", queued.get());
+        p.put("filesMoved", done);
+        p.put("filesRemaining", left);
+        p.put("filesFailed", failed.get());
+        p.put("retries", retried.get());
+        p.put("bytesMoved", bytesMoved.get());
+        p.put("filesPerSecond", rate);
+        p.put("etaSeconds", left == 0 ? 0 : rate > 0 ? left / rate : -1);
+        return p;
+    }
+
+    public void shutdown() {
+        workers.forEach(Thread::interrupt);
+        retries.shutdownNow();
+    }
+
+    private static String key(Move m) {
+        return m.source() + "/" + m.fileName();
+    }
+
+    // token bucket allowing one second of burst; a rate <= 0 means unlimited
+    private static final class Throttle {
+        private final double ratePerSecond;
+        private double available;
+        private long lastRefill = System.nanoTime();
+
+        Throttle(long ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+            this.available = ratePerSecond;
+        }
+
+        // the tokens are taken (possibly into debt) under the lock, the wait happens outside it: each worker
+        // sleeps off its own share of the debt while the others keep moving files
+        void acquire(long amount) throws InterruptedException {
+            if (ratePerSecond <= 0) return;
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                available = Math.min(ratePerSecond, available + (now - lastRefill) / 1e9 * ratePerSecond);
+                lastRefill = now;
+                available -= amount;
+                waitNanos = available < 0 ? (long) (-available / ratePerSecond * 1e9) : 0;
+            }
+            if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
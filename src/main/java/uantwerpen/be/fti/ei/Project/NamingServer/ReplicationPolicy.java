@@ -0,0 +1,63 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ReplicationPolicy {
+    // copies of every file, the owner's included; overrides are "glob=N" pairs, first match wins.
+    // A glob is matched against the whole relative path ("critical/*=3"); one without a '/' also
+    // matches the bare file name in any directory ("*.log=1").
+    // Shipped with the ring snapshot, so a node places replicas exactly like the naming server would.
+    private record Rule(PathMatcher matcher, boolean nameOnly, int factor) {}
+
+    private final int factor;
+    private final String overrides;
+    private final List<Rule> rules = new ArrayList<>();
+
+    public ReplicationPolicy(int factor, String overrides) {
+        this.factor = Math.max(1, factor);
+        this.overrides = overrides == null ? "" : overrides;
+        for (String rule : this.overrides.split(",")) {
+            if (rule.isBlank()) continue;
+            String[] parts = rule.split("=");
+            try {
+                String glob = parts[0].trim();
+                rules.add(new Rule(FileSystems.getDefault().getPathMatcher("glob:" + glob),
+                        !glob.contains("/"), Integer.parseInt(parts[1].trim())));
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring replication override '" + rule + "': " + e.getMessage());
+            }
+        }
+    }
+
+    public int factor() { return factor; }
+
+    public String overrides() { return overrides; }
+
+    public int factorFor(String fileName) {
+        Path path;
+        try {
+            path = Paths.get(fileName).normalize();
+        } catch (InvalidPathException e) {
+            return factor;
+        }
+        Path name = path.getFileName();
+        for (Rule rule : rules) {
+            if (rule.matcher().matches(path) || (rule.nameOnly() && name != null && rule.matcher().matches(name))) {
+                return Math.max(1, rule.factor());
+            }
+        }
+        return factor;
+    }
+
+    // the nodes that should hold copies besides the ring owner, in preference order
+    public List<String> replicasOf(RingSnapshot ring, String fileName) {
+        List<String> preference = ring.preferenceList(HashingUtil.generateHash(fileName), factorFor(fileName));
+        return preference.isEmpty() ? preference : preference.subList(1, preference.size());
+    }
+}
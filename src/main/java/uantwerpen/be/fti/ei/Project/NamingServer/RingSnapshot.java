@@ -0,0 +1,222 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.*;
+
+public final class RingSnapshot {
+    // immutable copy of the ring: sorted point hashes with, at the same index, the address and
+    // the physical node (its own hash) the point belongs to. Every physical node owns `vnodes`
+    // points. Lookups binary-search the primitive array, so they need no lock and box nothing.
+    // The epoch identifies the membership it was built from; nodes keep a copy until it changes.
+    // Points of overloaded nodes are skipped when placing (bounded-load consistent hashing): a hash
+    // goes to the first point at or after it whose node is under the bound.
+    public static final RingSnapshot EMPTY = new RingSnapshot(new long[0], new String[0], new long[0], Set.of(), 0, -1);
+
+    private final long[] hashes;
+    private final String[] ips;
+    private final long[] nodeIds;
+    private final Set<Long> overloaded;
+    // point -> first point at or after it that takes new files; null while no node is overloaded
+    private final int[] placement;
+    private final int physicalNodes;
+    private final long epoch;
+
+    private RingSnapshot(long[] hashes, String[] ips, long[] nodeIds, Set<Long> overloaded, int physicalNodes, long epoch) {
+        this.hashes = hashes;
+        this.ips = ips;
+        this.nodeIds = nodeIds;
+        this.overloaded = overloaded;
+        this.placement = overloaded.isEmpty() ? null : placementIndex(nodeIds, overloaded);
+        this.physicalNodes = physicalNodes;
+        this.epoch = epoch;
+    }
+
+    // built once per ring so the skip costs one array read per lookup instead of a walk.
+    // Two rounds backwards: the points before the wrap need the first usable point after it.
+    // When every node is overloaded each point keeps itself.
+    private static int[] placementIndex(long[] nodeIds, Set<Long> overloaded) {
+        int n = nodeIds.length;
+        int[] placement = new int[n];
+        int next = -1;
+        for (int k = 2 * n - 1; k >= 0; k--) {
+            int i = k % n;
+            if (!overloaded.contains(nodeIds[i])) next = i;
+            if (k < n) placement[i] = next < 0 ? i : next;
+        }
+        return placement;
+    }
+
+    public static RingSnapshot of(SortedMap<Long, Node> nodeMap, int vnodes, long epoch) {
+        int perNode = Math.max(1, vnodes);
+        // unordered while collecting and one primitive sort afterwards: spread-out keys make every
+        // sorted-map insert a walk through cold nodes
+        Map<Long, Node> points = new HashMap<>(nodeMap.size() * perNode * 2);
+        // own hashes first so a vnode never displaces a physical node's primary position
+        nodeMap.forEach(points::put);
+        for (Node node : nodeMap.values()) {
+            for (int i = 1; i < perNode; i++) {
+                points.putIfAbsent(HashingUtil.virtualNodeHash(node.getNodeName(), i), node);
+            }
+        }
+
+        Set<Long> overloaded = new HashSet<>();
+        for (Node node : nodeMap.values()) {
+            if (node.isOverloaded()) overloaded.add(node.getCurrentID());
+        }
+
+        long[] hashes = new long[points.size()];
+        int i = 0;
+        for (long hash : points.keySet()) hashes[i++] = hash;
+        Arrays.sort(hashes);
+        String[] ips = new String[hashes.length];
+        long[] nodeIds = new long[hashes.length];
+        for (i = 0; i < hashes.length; i++) {
+            Node node = points.get(hashes[i]);
+            ips[i] = node.getIpAddress();
+            nodeIds[i] = node.getCurrentID();
+        }
+        return new RingSnapshot(hashes, ips, nodeIds, overloaded, nodeMap.size(), epoch);
+    }
+
+    // wire form: every address once in "nodes", the points as two parallel arrays, the overloaded node ids
+    public Map<String, Object> toCompact() {
+        Map<String, String> nodes = new TreeMap<>();
+        for (int i = 0; i < hashes.length; i++) nodes.put(Long.toString(nodeIds[i]), ips[i]);
+        Map<String, Object> compact = new LinkedHashMap<>();
+        compact.put("epoch", epoch);
+        compact.put("nodes", nodes);
+        compact.put("points", hashes);
+        compact.put("owners", nodeIds);
+        compact.put("overloaded", overloaded);
+        return compact;
+    }
+
+    public static RingSnapshot fromCompact(Map<?, ?> compact) {
+        Map<?, ?> nodes = (Map<?, ?>) compact.get("nodes");
+        List<?> points = (List<?>) compact.get("points");
+        List<?> owners = (List<?>) compact.get("owners");
+        Set<Long> overloaded = new HashSet<>();
+        if (compact.get("overloaded") instanceof List<?> ids) {
+            for (Object id : ids) overloaded.add(((Number) id).longValue());
+        }
+        long[] hashes = new long[points.size()];
+        String[] ips = new String[points.size()];
+        long[] nodeIds = new long[points.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = ((Number) points.get(i)).longValue();
+            nodeIds[i] = ((Number) owners.get(i)).longValue();
+            ips[i] = (String) nodes.get(Long.toString(nodeIds[i]));
+        }
+        return new RingSnapshot(hashes, ips, nodeIds, overloaded, nodes.size(), ((Number) compact.get("epoch")).longValue());
+    }
+
+    public long epoch() { return epoch; }
+
+    public boolean isEmpty() { return hashes.length == 0; }
+
+    // number of points on the ring, virtual ones included
+    public int size() { return hashes.length; }
+
+    public int physicalNodes() { return physicalNodes; }
+
+    public Set<Long> overloaded() { return Collections.unmodifiableSet(overloaded); }
+
+    // index of the first point at or after hash, wrapping around to the start of the ring.
+    // Branch-free lower bound: well spread hashes make every step of a plain binary search a coin
+    // flip for the branch predictor, while this loop always runs log2(size) times and compiles to cmovs.
+    public int ownerIndex(long hash) {
+        int base = 0, len = hashes.length;
+        if (len == 0) return 0;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = hashes[base + half] < hash ? base + half : base;
+            len -= half;
+        }
+        int i = hashes[base] < hash ? base + 1 : base;
+        return i == hashes.length ? 0 : i;
+    }
+
+    // index of the point that takes the hash: the ring owner, or the first point after it under the bound
+    public int placementIndex(long hash) {
+        int i = ownerIndex(hash);
+        return placement == null ? i : placement[i];
+    }
+
+    // where a new file goes: the load bound applies
+    public String ownerOf(long hash) {
+        if (isEmpty()) return null;
+        return ips[placementIndex(hash)];
+    }
+
+    // the owner by ring position alone, for files already placed: rebalancing follows this one, so a
+    // node crossing the load bound never makes files move off it or back
+    public String ringOwnerOf(long hash) {
+        if (isEmpty()) return null;
+        return ips[ownerIndex(hash)];
+    }
+
+    private boolean isOverloaded(int point) {
+        return placement != null && overloaded.contains(nodeIds[point]);
+    }
+
+    // first point after the owner that belongs to another physical node with a different address,
+    // an overloaded one only if there is nothing else
+    public String replicaOf(long hash) {
+        if (physicalNodes < 2) return null;
+        int owner = placementIndex(hash);
+        String fallback = null;
+        for (int step = 1; step < hashes.length; step++) {
+            int i = (owner + step) % hashes.length;
+            if (nodeIds[i] == nodeIds[owner] || ips[i].equals(ips[owner])) continue;
+            if (!isOverloaded(i)) return ips[i];
+            if (fallback == null) fallback = ips[i];
+        }
+        return fallback;
+    }
+
+    // owner followed by the next distinct physical nodes clockwise, at most n addresses, no address twice.
+    // Overloaded nodes only fill up what the others cannot.
+    public List<String> preferenceList(long hash, int n) {
+        List<String> nodes = new ArrayList<>(n);
+        if (isEmpty() || n <= 0) return nodes;
+        int owner = placementIndex(hash);
+        for (int step = 0; step < hashes.length && nodes.size() < n; step++) {
+            int i = (owner + step) % hashes.length;
+            if (!isOverloaded(i) && !nodes.contains(ips[i])) nodes.add(ips[i]);
+        }
+        for (int step = 0; step < hashes.length && nodes.size() < n && placement != null; step++) {
+            int i = (owner + step) % hashes.length;
+            if (!nodes.contains(ips[i])) nodes.add(ips[i]);
+        }
+        return nodes;
+    }
+
+    // arcs (previous point, point] owned by a physical node; a lone point owns the whole ring
+    public List<long[]> arcsOf(long nodeId) {
+        List<long[]> arcs = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i++) {
+            if (nodeIds[i] != nodeId) continue;
+            arcs.add(new long[]{hashes[(i - 1 + hashes.length) % hashes.length], hashes[i]});
+        }
+        return arcs;
+    }
+
+    // share of the hash space each physical node owns: every point owns the arc from its predecessor
+    public Map<Long, Double> ownership() {
+        Map<Long, Double> share = new HashMap<>();
+        if (isEmpty()) return share;
+        HashStrategy strategy = HashingUtil.strategy();
+        for (int i = 0; i < hashes.length; i++) {
+            long prev = hashes[(i - 1 + hashes.length) % hashes.length];
+            share.merge(nodeIds[i], strategy.arcFraction(prev, hashes[i]), Double::sum);
+        }
+        return share;
+    }
+
+    public Map<Long, Integer> pointsPerNode() {
+        Map<Long, Integer> points = new HashMap<>();
+        for (long id : nodeIds) points.merge(id, 1, Integer::sum);
+        return points;
+    }
+}
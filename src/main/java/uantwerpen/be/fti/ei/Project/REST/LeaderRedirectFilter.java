@@ -0,0 +1,47 @@
+package uantwerpen.be.fti.ei.Project.REST;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import uantwerpen.be.fti.ei.Project.NamingServer.NamingCluster;
+
+import java.io.IOException;
+import java.util.Set;
+
+@Component
+@Profile("namingserver")
+public class LeaderRedirectFilter extends OncePerRequestFilter {
+    // followers serve reads from their replica; anything that changes naming state goes to the leader
+    // with a 307, which keeps method and body so clients simply follow it
+    private static final Set<String> READ_METHODS = Set.of("GET", "HEAD", "OPTIONS");
+    // POSTs that only look things up
+    private static final Set<String> READ_POSTS = Set.of("/api/replicate/batch", "/api/replicate/preference");
+
+    @Autowired
+    private NamingCluster cluster;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        String path = request.getRequestURI();
+        if (READ_METHODS.contains(request.getMethod()) || !path.startsWith("/api/")
+                || path.startsWith("/api/cluster/") || READ_POSTS.contains(path) || cluster.isLeader()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String leader = cluster.leader();
+        if (leader == null) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "no naming leader elected");
+            return;
+        }
+        String query = request.getQueryString();
+        response.setHeader("Location", leader + path + (query == null ? "" : "?" + query));
+        response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+    }
+}
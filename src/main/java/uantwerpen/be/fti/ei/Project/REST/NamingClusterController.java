@@ -0,0 +1,37 @@
+package uantwerpen.be.fti.ei.Project.REST;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.bind.annotation.*;
+import uantwerpen.be.fti.ei.Project.NamingServer.NamingCluster;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/cluster")
+@Profile("namingserver")
+public class NamingClusterController {
+    // instance-to-instance calls of the naming cluster, plus its status for operators
+    @Autowired
+    private NamingCluster cluster;
+
+    @PostMapping("/vote")
+    public NamingCluster.VoteResponse vote(@RequestBody NamingCluster.VoteRequest request) {
+        return cluster.handleVote(request);
+    }
+
+    @PostMapping("/append")
+    public NamingCluster.AppendResponse append(@RequestBody NamingCluster.AppendRequest request) {
+        return cluster.handleAppend(request);
+    }
+
+    @PostMapping("/snapshot")
+    public NamingCluster.AppendResponse snapshot(@RequestBody NamingCluster.StateSnapshot snapshot) {
+        return cluster.handleSnapshot(snapshot);
+    }
+
+    @GetMapping("/status")
+    public Map<String, Object> status() {
+        return cluster.status();
+    }
+}
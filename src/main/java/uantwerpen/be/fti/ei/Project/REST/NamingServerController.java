@@ -1,47 +1,112 @@
 package uantwerpen.be.fti.ei.Project.REST;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.util.UriUtils;
 import uantwerpen.be.fti.ei.Project.NamingServer.HashingUtil;
 import uantwerpen.be.fti.ei.Project.NamingServer.NamingServer;
+import uantwerpen.be.fti.ei.Project.NamingServer.NodeLoads;
+import uantwerpen.be.fti.ei.Project.NamingServer.RingSnapshot;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @RestController
 @RequestMapping("/api")
 @Profile("namingserver")
 public class NamingServerController {
+    // longest a ring poll is parked before it is answered with 304
+    private static final long MAX_RING_WAIT_MS = 60_000;
+
     @Autowired
     private NamingServer namingServer;
 
+    // parked ring polls, all answered at once when the membership changes
+    private final Set<DeferredResult<ResponseEntity<?>>> ringWaiters = ConcurrentHashMap.newKeySet();
+    // the listener runs under the naming server's monitor: the ring is serialized and the polls answered here,
+    // one ring after the other so a parked poll never gets an older ring than the one before it
+    private final ExecutorService ringNotifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ring-notifier");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    public void init() {
+        namingServer.addRingListener(ring -> ringNotifier.execute(() -> {
+            if (ringWaiters.isEmpty()) return;
+            ResponseEntity<?> response = ResponseEntity.ok(namingServer.compactRing(ring));
+            for (DeferredResult<ResponseEntity<?>> waiter : ringWaiters) {
+                waiter.setResult(response);
+            }
+        }));
+    }
+
+    @PreDestroy
+    public void stop() {
+        ringNotifier.shutdownNow();
+    }
+
     @PostMapping("/nodes")
     public ResponseEntity<?> addNode(@RequestBody Map<String, String> req) {
-        boolean ok = namingServer.addNode(req.get("nodeName"), req.get("ipAddress"));
-        return ok ? ResponseEntity.ok(Map.of("status","ok")) : ResponseEntity.status(409).body(Map.of("error","exists"));
+        return switch (namingServer.addNode(req.get("nodeName"), req.get("ipAddress"))) {
+            case APPLIED -> ResponseEntity.ok(Map.of("status","ok"));
+            case UNCHANGED -> ResponseEntity.status(409).body(Map.of("error","exists"));
+            case NOT_PERSISTED -> ResponseEntity.status(503).body(Map.of("error","not persisted"));
+        };
     }
 
     @DeleteMapping("/nodes/{hash}")
-    public ResponseEntity<?> removeNode(@PathVariable int hash) {
-        return namingServer.removeNode(hash) ? ResponseEntity.ok().build() : ResponseEntity.notFound().build();
+    public ResponseEntity<?> removeNode(@PathVariable long hash) {
+        return switch (namingServer.removeNode(hash)) {
+            case APPLIED -> ResponseEntity.ok().build();
+            case UNCHANGED -> ResponseEntity.notFound().build();
+            case NOT_PERSISTED -> ResponseEntity.status(503).body(Map.of("error","not persisted"));
+        };
+    }
+
+    @GetMapping("/nodes/{hash}")
+    public ResponseEntity<?> getNode(@PathVariable long hash) {
+        String ip = namingServer.getNodeAddress(hash);
+        return ip != null ? ResponseEntity.ok(Map.of("currentID", hash, "ipAddress", ip)) : ResponseEntity.notFound().build();
+    }
+
+    @PostMapping("/nodes/{hash}/failure")
+    public ResponseEntity<?> reportFailure(@PathVariable long hash, @RequestBody Map<String, Object> report) {
+        Object reporter = report.get("reporterID");
+        long reporterId = reporter instanceof Number n ? n.longValue() : -1;
+        return namingServer.reportFailure(hash, reporterId) ? ResponseEntity.accepted().build() : ResponseEntity.notFound().build();
+    }
+
+    @PostMapping("/nodes/{hash}/load")
+    public ResponseEntity<?> reportLoad(@PathVariable long hash, @RequestBody Map<String, Number> load) {
+        NodeLoads.Report report = new NodeLoads.Report(
+                load.getOrDefault("freeBytes", Long.MAX_VALUE).longValue(),
+                load.getOrDefault("storedBytes", 0).longValue(),
+                load.getOrDefault("inboundBytesPerSec", 0).doubleValue(),
+                System.currentTimeMillis());
+        return namingServer.reportLoad(hash, report) ? ResponseEntity.accepted().build() : ResponseEntity.notFound().build();
     }
 
     @PutMapping("/nodes/{hash}/previous")
-    public ResponseEntity<?> updatePrev(@PathVariable int hash, @RequestBody int prev) {
-        var node = namingServer.getNodeMap().get(hash);
-        if (node==null) return ResponseEntity.notFound().build();
-        node.setPreviousID(prev);
-        namingServer.saveNodeMap();
+    public ResponseEntity<?> updatePrev(@PathVariable long hash, @RequestBody long prev) {
+        if (!namingServer.updatePrevious(hash, prev)) return ResponseEntity.notFound().build();
         return ResponseEntity.ok().build();
     }
 
     @PutMapping("/nodes/{hash}/next")
-    public ResponseEntity<?> updateNext(@PathVariable int hash, @RequestBody int next) {
-        var node = namingServer.getNodeMap().get(hash);
-        if (node==null) return ResponseEntity.notFound().build();
-        node.setNextID(next);
-        namingServer.saveNodeMap();
+    public ResponseEntity<?> updateNext(@PathVariable long hash, @RequestBody long next) {
+        if (!namingServer.updateNext(hash, next)) return ResponseEntity.notFound().build();
         return ResponseEntity.ok().build();
     }
 
@@ -60,16 +125,68 @@ public class NamingServerController {
     }
 
     @GetMapping("/nodemap")
-    public Map<Integer, ?> getMap() {
+    public Map<Long, ?> getMap() {
         return namingServer.getNodeMap();
     }
 
+    // compact ring for node-side placement. With `since` set to the caller's epoch the request is held
+    // until the epoch moves on (or waitMs passes, then 304), so polling costs follow membership churn
+    @GetMapping("/ring")
+    public DeferredResult<ResponseEntity<?>> getRing(@RequestParam(required = false) Long since,
+                                                     @RequestParam(defaultValue = "0") long waitMs) {
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(
+                Math.max(1, Math.min(waitMs, MAX_RING_WAIT_MS)), () -> ResponseEntity.status(304).build());
+        if (since != null && waitMs > 0) {
+            // parked before the epoch is checked, so a change in between is not missed
+            ringWaiters.add(result);
+            result.onCompletion(() -> ringWaiters.remove(result));
+        }
+        RingSnapshot current = namingServer.getRing();
+        if (since == null || since != current.epoch() || waitMs <= 0) {
+            result.setResult(ResponseEntity.ok(namingServer.compactRing(current)));
+        }
+        return result;
+    }
+
+    @GetMapping("/ring/distribution")
+    public ResponseEntity<?> getRingDistribution() {
+        return ResponseEntity.ok(namingServer.getRingDistribution());
+    }
+
+    @GetMapping("/rebalance")
+    public ResponseEntity<?> getRebalanceProgress() {
+        return ResponseEntity.ok(namingServer.getRebalanceProgress());
+    }
+
     @GetMapping("/replicate")
-    public ResponseEntity<?> getReplicationTarget(@RequestParam int hash) {
+    public ResponseEntity<?> getReplicationTarget(@RequestParam long hash) {
         String ip = namingServer.getNodeForReplication(hash);
         return ip != null ? ResponseEntity.ok(Map.of("ip", ip)) : ResponseEntity.notFound().build();
     }
 
+    @PostMapping("/replicate/batch")
+    public ResponseEntity<?> getReplicationTargets(@RequestBody Map<String, List<Long>> req) {
+        List<Long> hashes = req.getOrDefault("hashes", List.of());
+        return ResponseEntity.ok(Map.of("targets", namingServer.getNodesForReplication(hashes)));
+    }
+
+    @GetMapping("/replicate/preference")
+    public ResponseEntity<?> getReplicaList(@RequestParam String file) {
+        return ResponseEntity.ok(Map.of("file", file, "replicas", namingServer.getReplicaList(file)));
+    }
+
+    @PostMapping("/replicate/preference")
+    public ResponseEntity<?> getReplicaLists(@RequestBody Map<String, List<String>> req) {
+        List<String> files = req.getOrDefault("files", List.of());
+        return ResponseEntity.ok(Map.of("replicas", namingServer.getReplicaLists(files)));
+    }
+
+    @PostMapping("/files/replicate/batch")
+    public ResponseEntity<?> registerReplications(@RequestBody List<Map<String, String>> payload) {
+        int registered = namingServer.registerFileReplications(payload);
+        return ResponseEntity.ok(Map.of("registered", registered));
+    }
+
     @PostMapping("/files/replicate")
     public ResponseEntity<?> registerReplication(
             @RequestBody Map<String, String> payload) {
@@ -81,20 +198,44 @@ public class NamingServerController {
     }
     @DeleteMapping("/files/{fileName}/replicas/{replicaIp}")
     public ResponseEntity<?> removeReplica(
-            @PathVariable String fileName) {
-        namingServer.removeFileReplica(fileName);
+            @PathVariable String fileName, @PathVariable String replicaIp) {
+        namingServer.removeFileReplica(fileName, replicaIp);
         return ResponseEntity.ok().build();
     }
+
+    @GetMapping("/files/{fileName}/locations")
+    public ResponseEntity<?> findFileLocations(@PathVariable String fileName) {
+        var locations = namingServer.getFileLocations(fileName);
+        return locations.isEmpty() ? ResponseEntity.notFound().build()
+                : ResponseEntity.ok(Map.of("fileName", fileName, "locations", locations));
+    }
+
+    @GetMapping("/files/{fileName}/replicas")
+    public ResponseEntity<?> findReadReplicas(@PathVariable String fileName) {
+        var copies = namingServer.getReadReplicas(fileName);
+        if (copies.isEmpty()) return ResponseEntity.notFound().build();
+        var replicas = copies.stream()
+                .map(ip -> Map.of("ip", ip, "url", "http://" + ip + ":8081/api/bootstrap/files/"
+                        + UriUtils.encodePathSegment(fileName, StandardCharsets.UTF_8)))
+                .toList();
+        return ResponseEntity.ok(Map.of("fileName", fileName, "replicas", replicas));
+    }
+
+    @GetMapping("/catalog/verify")
+    public ResponseEntity<?> verifyCatalog() {
+        var problems = namingServer.verifyCatalog();
+        return ResponseEntity.ok(Map.of("consistent", problems.isEmpty(), "problems", problems));
+    }
     @GetMapping("/nodes/{hash}/replicated")
-    public ResponseEntity<?> getReplicatedFiles(@PathVariable int hash) {
+    public ResponseEntity<?> getReplicatedFiles(@PathVariable long hash) {
         var replicas = namingServer.getReplicatedFilesForNode(hash);
         return ResponseEntity.ok(replicas);
     }
 
     @GetMapping("/nodes/{hash}/shouldReplicate")
-    public ResponseEntity<?> shouldReplicate(@PathVariable int hash,
+    public ResponseEntity<?> shouldReplicate(@PathVariable long hash,
                                              @RequestParam String file) {
-        int fileHash = HashingUtil.generateHash(file);
+        long fileHash = HashingUtil.generateHash(file);
         String target = namingServer.getNodeForReplication(fileHash);
         return ResponseEntity.ok(Map.of(
                 "file", file,
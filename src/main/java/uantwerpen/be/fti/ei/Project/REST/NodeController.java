@@ -1,12 +1,16 @@
 package uantwerpen.be.fti.ei.Project.REST;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+import uantwerpen.be.fti.ei.Project.replication.Compression;
 import uantwerpen.be.fti.ei.Project.replication.FileReplicator;
 import uantwerpen.be.fti.ei.Project.replication.FileTransferRequest;
+import uantwerpen.be.fti.ei.Project.storage.FileDownload;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -26,8 +30,9 @@ public class NodeController {
     @PostMapping("/update")
     public ResponseEntity<?> update(@RequestBody Map<String,Object> p){
         int field = (int) p.get("updatedField");
-        if (field == 1)      node.updatePrevious((int) p.get("nodeID"));
-        else if (field == 2) node.updateNext((int) p.get("nodeID"));
+        long id = ((Number) p.get("nodeID")).longValue();
+        if (field == 1)      node.updatePrevious(id);
+        else if (field == 2) node.updateNext(id);
         return ResponseEntity.ok().build();
     }
 
@@ -42,12 +47,24 @@ public class NodeController {
         }
     }
 
+    // reads are served by whichever copy the client picked from /api/files/{fileName}/replicas
+    @GetMapping("/files/{fileName}")
+    public void readFile(@PathVariable String fileName, HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        FileDownload.serve(node.getStorageDirectory(), fileName, request, response);
+    }
+
     @PostMapping("/info")
     public ResponseEntity<Void> receiveCount(@RequestBody Map<String,Integer> m){
         node.setInitialCount(m.get("count"));
         return ResponseEntity.ok().build();
     }
 
+    @GetMapping("/replication/compression")
+    public Map<String, Object> compressionStats() {
+        return Compression.stats();
+    }
+
     @GetMapping("/state")
     public Map<String, Object> nodeState() {
         return Map.of(
@@ -55,7 +72,9 @@ public class NodeController {
                 "ipAddress", node.getIpAddress(),
                 "currentID", node.getCurrentID(),
                 "previousID", node.getPreviousID(),
-                "nextID",     node.getNextID()
+                "nextID",     node.getNextID(),
+                "ringEpoch",  node.getRingEpoch(),
+                "load",       node.getLoad()
         );
     }
 }
\ No newline at end of file
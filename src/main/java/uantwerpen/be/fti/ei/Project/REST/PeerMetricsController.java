@@ -0,0 +1,21 @@
+package uantwerpen.be.fti.ei.Project.REST;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/peers")
+public class PeerMetricsController {
+    @Autowired
+    private PeerClient peerClient;
+
+    @GetMapping("/latency")
+    public Map<String, Map<String, Object>> latency() {
+        return peerClient.latencySnapshot();
+    }
+}
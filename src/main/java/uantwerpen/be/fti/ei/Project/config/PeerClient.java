@@ -0,0 +1,148 @@
+package uantwerpen.be.fti.ei.Project.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+@Component
+public class PeerClient {
+    // every call between nodes and the naming server goes through here: one pooled RestTemplate,
+    // async fan-out on virtual threads and per-peer latency numbers
+    private final RestTemplate rest;
+    private final ExecutorService async = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, PeerStats> stats = new ConcurrentHashMap<>();
+
+    private static final class PeerStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    // interchangeable base URLs (the naming cluster): a call to any of them goes to the one that last
+    // answered, and moves on to the next when it cannot be reached. Followers redirect writes themselves.
+    private volatile List<String> failoverGroup = List.of();
+    private volatile int activeBase;
+
+    @Autowired
+    public PeerClient(RestTemplate rest) {
+        this.rest = rest;
+    }
+
+    public void setFailoverGroup(List<String> baseUrls) {
+        failoverGroup = List.copyOf(baseUrls);
+        activeBase = 0;
+    }
+
+    public <T> T getForObject(String url, Class<T> type) {
+        return failover(url, u -> timed(u, () -> rest.getForObject(u, type)));
+    }
+
+    public <T> T postForObject(String url, Object body, Class<T> type) {
+        return failover(url, u -> timed(u, () -> rest.postForObject(u, body, type)));
+    }
+
+    public void put(String url, Object body) {
+        failover(url, u -> timed(u, () -> { rest.put(u, body); return null; }));
+    }
+
+    public void delete(String url) {
+        failover(url, u -> timed(u, () -> { rest.delete(u); return null; }));
+    }
+
+    public <T> CompletableFuture<T> postAsync(String url, Object body, Class<T> type) {
+        return CompletableFuture.supplyAsync(() -> postForObject(url, body, type), async);
+    }
+
+    // fire-and-collect: wait (bounded) for a fan-out and log whatever failed, never throws
+    public void awaitAll(Collection<? extends CompletableFuture<?>> calls, Duration timeout) {
+        try {
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture[0]))
+                    .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Peer fan-out: " + calls.stream().filter(c -> !c.isDone()).count()
+                    + " call(s) still pending after " + timeout.toMillis() + " ms");
+        } catch (ExecutionException e) {
+            System.err.println("Peer fan-out: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Map<String, Map<String, Object>> latencySnapshot() {
+        Map<String, Map<String, Object>> snapshot = new TreeMap<>();
+        stats.forEach((peer, s) -> {
+            long calls = s.calls.sum();
+            snapshot.put(peer, Map.of(
+                    "calls", calls,
+                    "errors", s.errors.sum(),
+                    "avgMs", calls == 0 ? 0.0 : s.totalNanos.sum() / 1e6 / calls,
+                    "maxMs", s.maxNanos.get() / 1e6));
+        });
+        return snapshot;
+    }
+
+    private <T> T failover(String url, Function<String, T> call) {
+        List<String> group = failoverGroup;
+        String path = null;
+        for (String base : group) {
+            if (url.startsWith(base)) {
+                path = url.substring(base.length());
+                break;
+            }
+        }
+        if (path == null) return call.apply(url);
+
+        int first = activeBase;
+        ResourceAccessException last = null;
+        for (int i = 0; i < group.size(); i++) {
+            int index = (first + i) % group.size();
+            try {
+                T result = call.apply(group.get(index) + path);
+                if (index != first) {
+                    activeBase = index;
+                    System.out.println("Failed over to " + group.get(index));
+                }
+                return result;
+            } catch (ResourceAccessException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    private <T> T timed(String url, Supplier<T> call) {
+        PeerStats s = stats.computeIfAbsent(peerOf(url), k -> new PeerStats());
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            s.errors.increment();
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            s.calls.increment();
+            s.totalNanos.add(elapsed);
+            s.maxNanos.accumulate(elapsed);
+        }
+    }
+
+    private static String peerOf(String url) {
+        try {
+            URI uri = URI.create(url);
+            return uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+}
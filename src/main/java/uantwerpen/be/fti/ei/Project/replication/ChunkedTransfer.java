@@ -0,0 +1,188 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class ChunkedTransfer {
+    // FILE bodies as a sequence of self-contained chunks, each with a CRC32C of its raw bytes, followed by a
+    // SHA-256 of the whole file. Every chunk can be verified and written on its own, so the receiver only
+    // ever persists good data and an interrupted transfer can pick up at the last complete chunk.
+    //   chunk: int rawLength (0 ends the body), byte encoding, int wireLength, int crc, <wireLength bytes>
+    //   end:   int 0, 32 byte SHA-256
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DIGEST_LENGTH = 32;
+
+    private ChunkedTransfer() {}
+
+    // streams [offset, size) of body; the digest still covers the whole file. out must write to channel.
+    // The checksums are computed off a direct buffer and an uncompressed chunk then goes out with
+    // transferTo (sendfile), so the file never passes through the heap. Only a chunk that is being
+    // deflated is copied into a heap array for the Deflater. If the file changes between checksum and
+    // send, the receiver's CRC check fails and the transfer is retried like any broken one.
+    public static Compression.Meter send(FileChannel body, long size, long offset, boolean compress,
+                                         DataOutputStream out, WritableByteChannel channel) throws IOException {
+        MessageDigest sha = sha256();
+        ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(CHUNK_SIZE, size)));
+        hashPrefix(body, offset, sha, chunk);
+
+        Deflater deflater = compress ? Compression.newDeflater() : null;
+        byte[] raw = compress ? new byte[CHUNK_SIZE] : null;
+        byte[] packed = compress ? new byte[CHUNK_SIZE] : null;
+        CRC32C crc = new CRC32C();
+        Compression.Meter meter = new Compression.Meter();
+        try {
+            long position = offset;
+            while (position < size) {
+                int len = read(body, position, chunk, (int) Math.min(CHUNK_SIZE, size - position));
+                sha.update(chunk.duplicate());
+                crc.reset();
+                crc.update(chunk.duplicate());
+
+                int packedLen = -1;
+                if (compress) {
+                    chunk.get(raw, 0, len);
+                    packedLen = Compression.deflateChunk(deflater, raw, len, packed, meter);
+                }
+                out.writeInt(len);
+                if (packedLen >= 0) {
+                    out.writeByte(ReplicationProtocol.DEFLATE);
+                    out.writeInt(packedLen);
+                    out.writeInt((int) crc.getValue());
+                    out.write(packed, 0, packedLen);
+                    meter.wireBytes += packedLen;
+                } else {
+                    out.writeByte(ReplicationProtocol.RAW);
+                    out.writeInt(len);
+                    out.writeInt((int) crc.getValue());
+                    if (compress) {
+                        // already on the heap for the deflate attempt
+                        out.write(raw, 0, len);
+                    } else {
+                        out.flush();
+                        transfer(body, position, len, channel);
+                    }
+                    meter.wireBytes += len;
+                }
+                meter.rawBytes += len;
+                position += len;
+            }
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+        out.writeInt(0);
+        out.write(sha.digest());
+        return meter;
+    }
+
+    private static void transfer(FileChannel body, long position, int len, WritableByteChannel channel) throws IOException {
+        long sent = 0;
+        while (sent < len) {
+            long n = body.transferTo(position + sent, len - sent, channel);
+            if (n <= 0 && position + sent >= body.size()) throw new EOFException("file shrank while sending");
+            sent += n;
+        }
+    }
+
+    // appends chunks at offset (the file already holds the verified bytes before it) and checks the digest.
+    // A chunk that fails its CRC is never written, so whatever is on disk stays a valid prefix.
+    public static Compression.Meter receive(DataInputStream in, FileChannel out, long offset, long size) throws IOException {
+        MessageDigest sha = sha256();
+        byte[] raw = new byte[CHUNK_SIZE];
+        hashPrefix(out, offset, sha, ByteBuffer.wrap(raw));
+
+        byte[] packed = null;
+        Inflater inflater = null;
+        CRC32C crc = new CRC32C();
+        Compression.Meter meter = new Compression.Meter();
+        long position = offset;
+        try {
+            int len;
+            while ((len = in.readInt()) > 0) {
+                byte encoding = in.readByte();
+                int wireLen = in.readInt();
+                int expectedCrc = in.readInt();
+                if (len > CHUNK_SIZE || wireLen < 0 || wireLen > CHUNK_SIZE || position + len > size) {
+                    throw new IOException("malformed chunk at offset " + position);
+                }
+                if (encoding == ReplicationProtocol.DEFLATE) {
+                    if (packed == null) {
+                        packed = new byte[CHUNK_SIZE];
+                        inflater = new Inflater();
+                    }
+                    in.readFully(packed, 0, wireLen);
+                    Compression.inflateChunk(inflater, packed, wireLen, raw, len, meter);
+                } else if (encoding == ReplicationProtocol.RAW && wireLen == len) {
+                    in.readFully(raw, 0, len);
+                } else {
+                    throw new IOException("unknown chunk encoding " + encoding);
+                }
+                crc.reset();
+                crc.update(raw, 0, len);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("checksum mismatch in chunk at offset " + position);
+                }
+
+                ByteBuffer buf = ByteBuffer.wrap(raw, 0, len);
+                while (buf.hasRemaining()) position += out.write(buf, position);
+                sha.update(raw, 0, len);
+                meter.rawBytes += len;
+                meter.wireBytes += wireLen;
+            }
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+
+        byte[] expected = in.readNBytes(DIGEST_LENGTH);
+        if (expected.length != DIGEST_LENGTH) throw new EOFException("connection closed before the file digest");
+        if (position != size) throw new IOException("body ended at " + position + " of " + size + " bytes");
+        if (!MessageDigest.isEqual(expected, sha.digest())) {
+            // the kept prefix no longer matches the sender's file: resuming from it would only repeat this
+            out.truncate(0);
+            throw new IOException("whole-file digest does not match");
+        }
+        return meter;
+    }
+
+    // largest chunk-aligned prefix of a partial file that can be kept
+    public static long resumableOffset(long partialSize, long size) {
+        long aligned = partialSize / CHUNK_SIZE * CHUNK_SIZE;
+        return Math.min(aligned, size);
+    }
+
+    private static void hashPrefix(FileChannel file, long length, MessageDigest sha, ByteBuffer buf) throws IOException {
+        long position = 0;
+        while (position < length) {
+            int len = read(file, position, buf, (int) Math.min(buf.capacity(), length - position));
+            sha.update(buf);
+            position += len;
+        }
+    }
+
+    // fills buf with len bytes from position and flips it for reading
+    private static int read(FileChannel file, long position, ByteBuffer buf, int len) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            if (file.read(buf, position + buf.position()) < 0) throw new EOFException("file shrank while reading");
+        }
+        buf.flip();
+        return len;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
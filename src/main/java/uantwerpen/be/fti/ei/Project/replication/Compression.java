@@ -0,0 +1,160 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class Compression {
+    // Deflate for FILE chunks. The JDK's own codec, so no extra dependency; level 1 (BEST_SPEED)
+    // already gets text/JSON down several times at a fraction of the CPU of the higher levels.
+    private static final int SAMPLE = 64 * 1024;
+    private static final long MIN_SIZE = 512;
+    // bits per byte above which a sample will not shrink enough to be worth the CPU
+    private static final double MAX_ENTROPY = 7.5;
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "jar", "bz2", "xz", "zst", "lz4", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "ogg", "flac", "pdf");
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean enabled = true;
+    private static volatile int level = Deflater.BEST_SPEED;
+
+    private static final LongAdder compressedFiles = new LongAdder();
+    private static final LongAdder skippedFiles = new LongAdder();
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder wireBytes = new LongAdder();
+    private static final LongAdder cpuNanos = new LongAdder();
+
+    // bytes and codec time of one transfer
+    public static final class Meter {
+        long rawBytes;
+        long wireBytes;
+        long cpuNanos;
+
+        public long rawBytes() { return rawBytes; }
+        public long wireBytes() { return wireBytes; }
+        public double ratio() { return wireBytes == 0 ? 1.0 : (double) rawBytes / wireBytes; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d -> %d bytes (%.1fx, cpu %.1f ms)",
+                    rawBytes, wireBytes, ratio(), cpuNanos / 1e6);
+        }
+    }
+
+    private Compression() {}
+
+    public static void configure(boolean enable, int compressionLevel) {
+        enabled = enable;
+        level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+    }
+
+    public static boolean isEnabled() { return enabled; }
+
+    // skip tiny files, known compressed formats and anything whose first bytes already look random
+    public static boolean worthCompressing(String fileName, FileChannel body, long size) throws IOException {
+        boolean worth = size >= MIN_SIZE && !COMPRESSED_EXTENSIONS.contains(extensionOf(fileName))
+                && entropy(body, size) <= MAX_ENTROPY;
+        if (!worth) skippedFiles.increment();
+        return worth;
+    }
+
+    static double entropy(FileChannel body, long size) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE, size));
+        while (sample.hasRemaining() && body.read(sample, sample.position()) > 0) {}
+        sample.flip();
+        int[] counts = new int[256];
+        int n = sample.remaining();
+        while (sample.hasRemaining()) counts[sample.get() & 0xff]++;
+        double bits = 0;
+        for (int c : counts) {
+            if (c == 0) continue;
+            double p = (double) c / n;
+            bits -= p * Math.log(p) / Math.log(2);
+        }
+        return bits;
+    }
+
+    // compresses one chunk on its own, so any chunk boundary is a valid resume point. Returns the packed
+    // length, or -1 if the chunk does not shrink (it then goes out raw)
+    public static int deflateChunk(Deflater deflater, byte[] raw, int len, byte[] packed, Meter meter) {
+        long start = cpuTime();
+        deflater.reset();
+        deflater.setInput(raw, 0, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < len) {
+            n += deflater.deflate(packed, n, Math.min(packed.length, len) - n);
+        }
+        meter.cpuNanos += cpuTime() - start;
+        return deflater.finished() && n < len ? n : -1;
+    }
+
+    public static void inflateChunk(Inflater inflater, byte[] packed, int packedLen, byte[] raw, int rawLen,
+                                    Meter meter) throws IOException {
+        long start = cpuTime();
+        inflater.reset();
+        inflater.setInput(packed, 0, packedLen);
+        int n = 0;
+        try {
+            while (n < rawLen && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, rawLen - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed chunk: " + e.getMessage(), e);
+        } finally {
+            meter.cpuNanos += cpuTime() - start;
+        }
+        if (n != rawLen || !inflater.finished()) throw new IOException("chunk inflated to " + n + " of " + rawLen + " bytes");
+    }
+
+    public static Deflater newDeflater() {
+        return new Deflater(level);
+    }
+
+    // adds one finished transfer to the totals
+    public static void record(Meter meter) {
+        compressedFiles.increment();
+        rawBytes.add(meter.rawBytes);
+        wireBytes.add(meter.wireBytes);
+        cpuNanos.add(meter.cpuNanos);
+    }
+
+    // thread CPU time; virtual threads (the receiver) have none, there the wall clock of the codec call stands in
+    private static long cpuTime() {
+        if (Thread.currentThread().isVirtual() || !threads.isCurrentThreadCpuTimeSupported()) return System.nanoTime();
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    public static Map<String, Object> stats() {
+        long raw = rawBytes.sum(), wire = wireBytes.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("level", level);
+        stats.put("compressedFiles", compressedFiles.sum());
+        stats.put("skippedFiles", skippedFiles.sum());
+        stats.put("rawBytes", raw);
+        stats.put("wireBytes", wire);
+        stats.put("ratio", wire == 0 ? 1.0 : (double) raw / wire);
+        stats.put("cpuMillis", cpuNanos.sum() / 1e6);
+        return stats;
+    }
+
+    private static String extensionOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,238 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class DeltaSync {
+    // rsync-style delta transfer. The replica describes its copy as fixed-size blocks (weak rolling
+    // checksum + MD5), the owner slides a window over its version and only sends the bytes that match
+    // no block. For an edit or append to a large file the traffic follows the change, not the file.
+    static final byte OP_COPY = 0; // int block index
+    static final byte OP_DATA = 1; // int length, <length bytes>
+    static final byte OP_END = 2;
+
+    // below this a plain send is cheaper than a signature round trip
+    public static final long MIN_DELTA_SIZE = 64 * 1024;
+    private static final int MIN_BLOCK = 1024;
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    public record Signature(long fileSize, int blockSize, int[] weak, byte[][] strong) {
+        int blockCount() { return weak.length; }
+    }
+
+    private DeltaSync() {}
+
+    // about sqrt(size) keeps both the signature and the per-change overhead small
+    public static int blockSizeFor(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        return (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, size & ~7L));
+    }
+
+    public static Signature signature(Path file, int blockSize) throws IOException {
+        long size = Files.size(file);
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            for (int i = 0; i < count; i++) {
+                int len = in.readNBytes(block, 0, blockSize);
+                weak[i] = weakChecksum(block, 0, len);
+                md5.update(block, 0, len);
+                strong[i] = md5.digest();
+            }
+        }
+        return new Signature(size, blockSize, weak, strong);
+    }
+
+    public static void writeSignature(DataOutputStream out, Signature sig) throws IOException {
+        out.writeLong(sig.fileSize());
+        out.writeInt(sig.blockSize());
+        out.writeInt(sig.blockCount());
+        for (int i = 0; i < sig.blockCount(); i++) {
+            out.writeInt(sig.weak()[i]);
+            out.write(sig.strong()[i]);
+        }
+    }
+
+    public static Signature readSignature(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        int count = in.readInt();
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            strong[i] = in.readNBytes(16);
+        }
+        return new Signature(size, blockSize, weak, strong);
+    }
+
+    // writes the ops that turn the replica's copy into `file`; returns the literal bytes sent
+    public static long writeDelta(Path file, Signature sig, DataOutputStream out) throws IOException {
+        int blockSize = sig.blockSize();
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        for (int i = 0; i < sig.blockCount(); i++) {
+            // a short last block can only match the end of the file, leave it out of the rolling search
+            if (i == sig.blockCount() - 1 && sig.fileSize() % blockSize != 0) continue;
+            byWeak.computeIfAbsent(sig.weak()[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        MessageDigest md5 = md5();
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        long literalBytes = 0;
+        byte[] window = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            int filled = in.readNBytes(window, 0, blockSize);
+            int start = 0; // window is circular, oldest byte at start
+            int a = 0, b = 0;
+            if (filled == blockSize) {
+                int weak = weakChecksum(window, 0, blockSize);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+            }
+
+            while (filled == blockSize) {
+                int match = findBlock(byWeak, (b << 16) | a, window, start, sig, md5);
+                if (match >= 0) {
+                    literalBytes += flushLiteral(literal, out);
+                    out.writeByte(OP_COPY);
+                    out.writeInt(match);
+                    filled = in.readNBytes(window, 0, blockSize);
+                    start = 0;
+                    if (filled == blockSize) {
+                        int weak = weakChecksum(window, 0, blockSize);
+                        a = weak & 0xffff;
+                        b = weak >>> 16;
+                    }
+                    continue;
+                }
+
+                // no match: the oldest byte becomes literal and the window rolls one byte on
+                int next = in.read();
+                int old = window[start] & 0xff;
+                literal.write(old);
+                if (literal.size() >= MAX_LITERAL) literalBytes += flushLiteral(literal, out);
+                if (next < 0) {
+                    // tail shorter than a block: move what is left of the window out in order
+                    for (int i = 1; i < blockSize; i++) literal.write(window[(start + i) % blockSize]);
+                    filled = 0;
+                    break;
+                }
+                window[start] = (byte) next;
+                start = (start + 1) % blockSize;
+                a = (a - old + next) & 0xffff;
+                b = (b - blockSize * old + a) & 0xffff;
+            }
+
+            // fewer than blockSize bytes left: they can still be the replica's short last block
+            if (filled > 0) {
+                int last = sig.blockCount() - 1;
+                if (last >= 0 && sig.fileSize() - (long) last * blockSize == filled
+                        && sig.weak()[last] == weakChecksum(window, 0, filled)) {
+                    md5.update(window, 0, filled);
+                    if (MessageDigest.isEqual(md5.digest(), sig.strong()[last])) {
+                        literalBytes += flushLiteral(literal, out);
+                        out.writeByte(OP_COPY);
+                        out.writeInt(last);
+                        filled = 0;
+                    }
+                }
+                literal.write(window, 0, filled);
+            }
+        }
+        literalBytes += flushLiteral(literal, out);
+        out.writeByte(OP_END);
+        return literalBytes;
+    }
+
+    // rebuilds the new version into target from the ops on `in` and the current copy
+    public static long applyDelta(DataInputStream in, Path basis, int blockSize, Path target) throws IOException {
+        long written = 0;
+        try (FileChannel old = FileChannel.open(basis, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long oldSize = old.size();
+            byte[] buf = new byte[MAX_LITERAL];
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_END) break;
+                if (op == OP_COPY) {
+                    long from = (long) in.readInt() * blockSize;
+                    long len = Math.min(blockSize, oldSize - from);
+                    if (from < 0 || len <= 0) throw new IOException("delta refers to a block past the end of the copy");
+                    long done = 0;
+                    while (done < len) done += old.transferTo(from + done, len - done, out);
+                    written += len;
+                } else if (op == OP_DATA) {
+                    int len = in.readInt();
+                    if (len < 0 || len > buf.length) throw new IOException("bad delta literal length " + len);
+                    in.readFully(buf, 0, len);
+                    out.write(ByteBuffer.wrap(buf, 0, len));
+                    written += len;
+                } else {
+                    throw new IOException("unknown delta op " + op);
+                }
+            }
+        }
+        return written;
+    }
+
+    private static int findBlock(Map<Integer, List<Integer>> byWeak, int weak, byte[] window, int start,
+                                 Signature sig, MessageDigest md5) {
+        List<Integer> candidates = byWeak.get(weak);
+        if (candidates == null) return -1;
+        md5.update(window, start, window.length - start);
+        md5.update(window, 0, start);
+        byte[] strong = md5.digest();
+        for (int i : candidates) {
+            if (MessageDigest.isEqual(strong, sig.strong()[i])) return i;
+        }
+        return -1;
+    }
+
+    private static long flushLiteral(ByteArrayOutputStream literal, DataOutputStream out) throws IOException {
+        int len = literal.size();
+        if (len == 0) return 0;
+        byte[] bytes = literal.toByteArray();
+        for (int off = 0; off < len; off += MAX_LITERAL) {
+            int chunk = Math.min(MAX_LITERAL, len - off);
+            out.writeByte(OP_DATA);
+            out.writeInt(chunk);
+            out.write(bytes, off, chunk);
+        }
+        literal.reset();
+        return len;
+    }
+
+    // rsync's weak checksum: two 16-bit sums that can be rolled one byte at a time
+    static int weakChecksum(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
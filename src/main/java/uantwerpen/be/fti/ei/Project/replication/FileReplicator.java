@@ -1,29 +1,126 @@
 package uantwerpen.be.fti.ei.Project.replication;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class FileReplicator {
-    // this class will handle the actual file transfers
-    public static void transferFile(String sourceIp, String targetIp, String fileName, byte[] fileData) throws IOException {
-        try (Socket socket = new Socket(targetIp, 8082);
-             OutputStream out = socket.getOutputStream();
-             DataOutputStream dos = new DataOutputStream(out)) {
-
-            // Send filemane and size
-            dos.writeUTF(fileName);
-            dos.writeInt(fileData.length);
-
-            // Send file data
-            dos.write(fileData);
+    // this class will handle the actual file transfers.
+    // Files travel as frames over pooled connections (see ReplicationProtocol), in checksummed chunks of
+    // ChunkedTransfer.CHUNK_SIZE, so heap use does not grow with the file and a broken transfer resumes.
+    private static final long STALE_PARTIAL_MS = 24 * 60 * 60 * 1000L;
+    private static final int MAX_TRANSFER_ATTEMPTS = 4;
+    private static final long RETRY_BACKOFF_MS = 500;
+    private static volatile PeerConnectionPool pool = new PeerConnectionPool(ReplicationProtocol.PORT, 4);
+
+    public static void configurePool(int maxConnectionsPerPeer) {
+        pool = new PeerConnectionPool(ReplicationProtocol.PORT, maxConnectionsPerPeer);
+    }
+
+    public static void configurePool(int maxConnectionsPerPeer, int connectTimeoutMs, int readTimeoutMs) {
+        pool = new PeerConnectionPool(ReplicationProtocol.PORT, maxConnectionsPerPeer, connectTimeoutMs, readTimeoutMs);
+    }
+
+    public static void transferFile(String sourceIp, String targetIp, String fileName, Path file) throws IOException {
+        long start = System.nanoTime();
+        try {
+            send(targetIp, fileName, file);
+            recordSent(targetIp, "full", Files.size(file), start, true);
+        } catch (IOException e) {
+            recordSent(targetIp, "full", 0, start, false);
+            throw e;
+        }
+    }
+
+    private static void send(String targetIp, String fileName, Path file) throws IOException {
+        PeerConnectionPool current = pool;
+        // a pooled connection may have been closed by the peer since its last use, and links drop: retry on a
+        // fresh connection, which continues a large file from the last chunk the receiver kept
+        for (int attempt = 0; ; attempt++) {
+            PeerConnectionPool.Connection c = current.borrow(targetIp);
+            try {
+                c.sendFile(fileName, file);
+                current.release(c);
+                return;
+            } catch (IOException e) {
+                current.invalidate(c);
+                if (attempt >= MAX_TRANSFER_ATTEMPTS - 1) throw e;
+                System.err.println("Transfer of " + fileName + " to " + targetIp + " interrupted (" + e.getMessage() + "), retrying");
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted before retrying " + fileName);
+                }
+            }
+        }
+    }
+
+    // brings the replica's copy up to date: only the changed blocks travel when the target already has
+    // an older version of a large file, otherwise (or if anything goes wrong) the whole file is sent
+    public static void syncFile(String sourceIp, String targetIp, String fileName, Path file) throws IOException {
+        long size = Files.size(file);
+        if (size < DeltaSync.MIN_DELTA_SIZE) {
+            transferFile(sourceIp, targetIp, fileName, file);
+            return;
+        }
+        PeerConnectionPool current = pool;
+        long start = System.nanoTime();
+        PeerConnectionPool.Connection c = current.borrow(targetIp);
+        try {
+            DeltaSync.Signature sig = c.requestSignature(fileName, DeltaSync.blockSizeFor(size));
+            if (sig == null || sig.fileSize() == 0) {
+                c.sendFile(fileName, file);
+                recordSent(targetIp, "full", size, start, true);
+                System.out.println("Sent " + fileName + " in full to " + targetIp + " (no copy there yet)");
+            } else {
+                long literal = c.sendDelta(fileName, file, sig);
+                recordSent(targetIp, "delta", literal, start, true);
+                System.out.println("Delta-synced " + fileName + " to " + targetIp + ": " + literal
+                        + " of " + size + " bytes sent");
+            }
+            current.release(c);
+        } catch (IOException e) {
+            current.invalidate(c);
+            recordSent(targetIp, "delta", 0, start, false);
+            System.err.println("Delta sync of " + fileName + " to " + targetIp + " failed (" + e.getMessage()
+                    + "), sending it in full");
+            transferFile(sourceIp, targetIp, fileName, file);
         }
     }
 
+    // per peer: files (the timer's count), bytes that went out and how long each took, for both directions
+    private static void recordSent(String targetIp, String mode, long bytes, long startNanos, boolean ok) {
+        Timer.builder("replication.transfer")
+                .tag("peer", targetIp).tag("direction", "sent").tag("mode", mode).tag("outcome", ok ? "success" : "error")
+                .register(Metrics.globalRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (ok) Metrics.counter("replication.bytes", "peer", targetIp, "direction", "sent").increment(bytes);
+    }
+
+    private static void recordReceived(String sourceIp, String mode, long bytes, long startNanos, boolean ok) {
+        Timer.builder("replication.transfer")
+                .tag("peer", sourceIp).tag("direction", "received").tag("mode", mode).tag("outcome", ok ? "success" : "error")
+                .register(Metrics.globalRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (ok) Metrics.counter("replication.bytes", "peer", sourceIp, "direction", "received").increment(bytes);
+    }
+
     public static byte[] receiveFile(InputStream in) throws IOException {
         try (DataInputStream dis = new DataInputStream(in);
              ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
@@ -43,42 +140,262 @@ public class FileReplicator {
         }
     }
     public static void startFileReceiver(int port, String storagePath) {
-        System.out.println("Starting file receiver on port " + port + " for: " + storagePath);
-        new Thread(() -> {
+        startFileReceiver(port, storagePath, 16);
+    }
+
+    // one virtual thread per connection. At most maxConcurrent files are received at once; a frame
+    // over that limit is not read until a slot frees up, which pushes back on the sender through TCP
+    public static void startFileReceiver(int port, String storagePath, int maxConcurrent) {
+        System.out.println("Starting file receiver on port " + port + " for: " + storagePath
+                + " (max " + maxConcurrent + " concurrent transfers)");
+        Semaphore slots = new Semaphore(Math.max(1, maxConcurrent));
+        Thread acceptor = new Thread(() -> {
             try {
                 Path storageDir = Paths.get(storagePath);
                 if (!Files.exists(storageDir)) {
                     Files.createDirectories(storageDir);
                     System.out.println("Created receiver storage: " + storageDir);
                 }
+                removeStalePartials(storageDir);
 
-                try (ServerSocket serverSocket = new ServerSocket(port)) {
+                try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                    server.bind(new InetSocketAddress(port));
                     System.out.println("File receiver listening on port " + port);
                     while (!Thread.currentThread().isInterrupted()) {
-                        try (Socket socket = serverSocket.accept();
-                             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                        SocketChannel channel = server.accept();
+                        Thread.ofVirtual().name("file-receiver-", 0)
+                                .start(() -> handleConnection(channel, storageDir, slots));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("File receiver error: " + e.getMessage());
+            }
+        }, "file-receiver");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
 
-                            String fileName = dis.readUTF();
+    private static void handleConnection(SocketChannel channel, Path storageDir, Semaphore slots) {
+        try (channel) {
+            String peer = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            // unbuffered on purpose: headers must not read ahead into a file body
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != ReplicationProtocol.MAGIC || in.readByte() != ReplicationProtocol.VERSION) {
+                System.err.println("Rejected replication connection: unknown protocol");
+                return;
+            }
+            in.readInt(); // sender capabilities; it only uses what we announce, so nothing to check
+            ByteArrayOutputStream hello = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(hello);
+            dos.writeInt(ReplicationProtocol.MAGIC);
+            dos.writeByte(ReplicationProtocol.VERSION);
+            // decoding costs little, so it is always offered; whether to compress is the sender's call
+            dos.writeInt(ReplicationProtocol.CAP_DEFLATE);
+            write(channel, hello.toByteArray());
 
-                            int fileSize = dis.readInt();
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return; // sender closed the connection
+                }
+                if (type == ReplicationProtocol.SIGNATURE_REQUEST) {
+                    long requestId = in.readLong();
+                    String fileName = in.readUTF();
+                    int blockSize = in.readInt();
+                    slots.acquire();
+                    try {
+                        sendSignature(channel, storageDir, requestId, fileName, blockSize);
+                    } finally {
+                        slots.release();
+                    }
+                    continue;
+                }
+                if (type != ReplicationProtocol.FILE && type != ReplicationProtocol.DELTA) {
+                    System.err.println("Unexpected replication frame type " + type);
+                    return;
+                }
+                long requestId = in.readLong();
+                String fileName = in.readUTF();
+                long size = in.readLong(); // file size, or for a delta the size of the copy it is based on
+                int blockSize = type == ReplicationProtocol.DELTA ? in.readInt() : 0;
+                long version = type == ReplicationProtocol.FILE ? in.readLong() : 0;
 
-                            // read bytes
-                            byte[] fileData = new byte[fileSize];
-                            dis.readFully(fileData);
+                slots.acquire();
+                long start = System.nanoTime();
+                String mode = type == ReplicationProtocol.FILE ? "full" : "delta";
+                try {
+                    long received = type == ReplicationProtocol.FILE
+                            ? receiveFile(channel, in, storageDir, requestId, fileName, size, version)
+                            : receiveDelta(in, storageDir, fileName, size, blockSize);
+                    ack(channel, requestId, ReplicationProtocol.OK, "");
+                    recordReceived(peer, mode, received, start, true);
+                } catch (IOException e) {
+                    recordReceived(peer, mode, 0, start, false);
+                    // the stream position is unknown now, so report and drop the connection
+                    System.err.println("Receiving " + fileName + " failed: " + e.getMessage());
+                    try { ack(channel, requestId, ReplicationProtocol.ERROR, String.valueOf(e.getMessage())); } catch (IOException ignored) {}
+                    return;
+                } finally {
+                    slots.release();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Replication connection closed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                            // Write file to disk
-                            Path targetPath = Paths.get(storagePath, fileName);
-                            Files.write(targetPath, fileData, StandardOpenOption.CREATE);
+    // returns the bytes that came over the wire for this attempt
+    private static long receiveFile(SocketChannel channel, DataInputStream in, Path storageDir, long requestId,
+                                    String name, long fileSize, long version) throws IOException {
+        // never trust a path from the wire, keep only the name
+        String fileName = Paths.get(name).getFileName().toString();
 
-                            System.out.println("Received replicated file: " + fileName + " (" + fileSize + " bytes)");
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("File receiver error: " + e.getMessage());
+        // write to a hidden temp file and rename when complete, so a half-received file is never visible.
+        // The temp file only ever holds verified chunks; next to it we note which version of the file it is,
+        // so a retry of the same version continues where this one stopped.
+        Path partial = storageDir.resolve("." + fileName + ".part");
+        Path meta = storageDir.resolve("." + fileName + ".part.meta");
+        boolean resumable = fileSize > ChunkedTransfer.CHUNK_SIZE;
+        String expected = fileSize + " " + version;
+        long offset = 0;
+        if (resumable) {
+            if (Files.isRegularFile(partial) && Files.isRegularFile(meta)
+                    && expected.equals(Files.readString(meta).trim())) {
+                offset = ChunkedTransfer.resumableOffset(Files.size(partial), fileSize);
+            } else {
+                Files.writeString(meta, expected);
+            }
+        }
+
+        try {
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                out.truncate(offset);
+                if (resumable) resume(channel, requestId, offset);
+                // buffering is safe: the body ends with the digest and the sender then waits for our ack
+                Compression.Meter meter = ChunkedTransfer.receive(
+                        new DataInputStream(new BufferedInputStream(in, 1 << 16)), out, offset, fileSize);
+                if (meter.wireBytes() < meter.rawBytes()) System.out.println("Inflated " + fileName + ": " + meter);
+            }
+            ReplicaCopies.add(fileName);
+            Files.move(partial, storageDir.resolve(fileName),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(meta);
+        } catch (IOException e) {
+            // keep what arrived of a large file for the retry; small ones are simply sent again
+            if (!resumable) {
+                Files.deleteIfExists(partial);
+                Files.deleteIfExists(meta);
             }
-        }).start();
+            throw e;
+        }
+
+        System.out.println("Received replicated file: " + fileName + " (" + fileSize + " bytes"
+                + (offset > 0 ? ", resumed at " + offset : "") + ")");
+        return fileSize - offset;
     }
 
+    private static void resume(SocketChannel channel, long requestId, long offset) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(frame);
+        dos.writeByte(ReplicationProtocol.RESUME);
+        dos.writeLong(requestId);
+        dos.writeLong(offset);
+        write(channel, frame.toByteArray());
+    }
+
+    // partial files whose sender never came back
+    private static void removeStalePartials(Path storageDir) {
+        long cutoff = System.currentTimeMillis() - STALE_PARTIAL_MS;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(storageDir, ".*.part*")) {
+            for (Path p : entries) {
+                if (Files.getLastModifiedTime(p).toMillis() < cutoff) Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not clean up partial transfers: " + e.getMessage());
+        }
+    }
 
+    private static void sendSignature(SocketChannel channel, Path storageDir, long requestId,
+                                      String name, int blockSize) throws IOException {
+        Path copy = storageDir.resolve(Paths.get(name).getFileName().toString());
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(frame);
+        dos.writeByte(ReplicationProtocol.SIGNATURE);
+        dos.writeLong(requestId);
+        if (!Files.isRegularFile(copy) || blockSize <= 0) {
+            dos.writeBoolean(false);
+        } else {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DeltaSync.writeSignature(new DataOutputStream(body), DeltaSync.signature(copy, blockSize));
+            dos.writeBoolean(true);
+            dos.writeInt(body.size());
+            body.writeTo(dos);
+        }
+        write(channel, frame.toByteArray());
+    }
+
+    // returns the bytes of delta ops that came over the wire
+    private static long receiveDelta(DataInputStream in, Path storageDir, String name,
+                                     long basisSize, int blockSize) throws IOException {
+        String fileName = Paths.get(name).getFileName().toString();
+        Path basis = storageDir.resolve(fileName);
+        Path partial = storageDir.resolve("." + fileName + ".delta");
+        try {
+            // the ops are only valid against the copy the signature was taken from
+            if (!Files.isRegularFile(basis) || Files.size(basis) != basisSize) {
+                throw new IOException("copy of " + fileName + " changed since its signature was sent");
+            }
+            // buffering is safe here: the sender waits for our ack before its next frame, so nothing past END is read ahead
+            CountingInputStream wire = new CountingInputStream(in);
+            DataInputStream ops = new DataInputStream(new BufferedInputStream(wire, 1 << 16));
+            long size = DeltaSync.applyDelta(ops, basis, blockSize, partial);
+            ReplicaCopies.add(fileName);
+            Files.move(partial, basis, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Applied delta to " + fileName + " (" + size + " bytes)");
+            return wire.count;
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+    }
+
+    private static void ack(SocketChannel channel, long requestId, byte status, String message) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(frame);
+        dos.writeByte(ReplicationProtocol.ACK);
+        dos.writeLong(requestId);
+        dos.writeByte(status);
+        dos.writeUTF(message);
+        write(channel, frame.toByteArray());
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) { super(in); }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
 }
@@ -1,23 +1,81 @@
 package uantwerpen.be.fti.ei.Project.replication;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.HashSet;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 public class FileWatcher implements Runnable {
-    // this class is for the Update phase
+    // this class is for the Update phase.
+    // The watch thread only marks file names dirty, it never does I/O for them, so the WatchService is
+    // drained as fast as events arrive. A flusher picks up names that have been quiet for the debounce
+    // window, compares the file on disk with what was last seen, and hands the resulting additions
+    // (in batches), edits and deletions to a bounded worker pool. On OVERFLOW the whole directory is
+    // marked dirty, which turns into a rescan.
+    // A file only counts as seen once its replication succeeded; one that failed is marked dirty again
+    // and looked at after RETRY_MILLIS, so nothing waits for the file to change again.
+    private static final int MAX_DELAY_WINDOWS = 20;
+    private static final long RETRY_MILLIS = 5000;
+
+    private record Seen(long modified, long size) {}
+
     private final Path dir;
     private final ReplicationManager manager;
-    private Set<String> knownFiles;
+    private final Map<String, Seen> knownFiles = new ConcurrentHashMap<>();
+    // dirty file name -> time of its first and of its latest event (in the future for a retry not yet due)
+    private final Map<String, long[]> dirty = new ConcurrentHashMap<>();
+    // a file is only handed to one worker at a time, so its changes are replicated in order.
+    // Kept with the time of the change it carries, for the replication lag.
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+    private final long debounceMillis;
+    private final int batchSize;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "file-watcher-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean rescanRequested;
 
     public FileWatcher(String directory, ReplicationManager manager) {
+        this(directory, manager, 200, 4, 500);
+    }
+
+    public FileWatcher(String directory, ReplicationManager manager, long debounceMillis, int workerCount, int batchSize) {
         this.dir = Paths.get(directory).toAbsolutePath();
         this.manager = manager;
-        this.knownFiles = new HashSet<>();
+        this.debounceMillis = Math.max(1, debounceMillis);
+        this.batchSize = Math.max(1, batchSize);
+        int threads = Math.max(1, workerCount);
+        // bounded queue; when it is full the flusher runs the task itself, which slows flushing, not watching
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), r -> {
+                    Thread t = new Thread(r, "replication-worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        // what is waiting to be replicated: files inside their debounce window, batches queued for a worker,
+        // files a worker is on; and how old the oldest change among them is
+        Gauge.builder("file.watcher.queue", dirty, Map::size).tag("stage", "debouncing").register(Metrics.globalRegistry);
+        Gauge.builder("file.watcher.queue", workers, w -> w.getQueue().size()).tag("stage", "queued").register(Metrics.globalRegistry);
+        Gauge.builder("file.watcher.queue", inFlight, Map::size).tag("stage", "in_flight").register(Metrics.globalRegistry);
+        Gauge.builder("replication.lag", this, FileWatcher::lagSeconds).baseUnit("seconds").register(Metrics.globalRegistry);
 
         System.out.println("Initializing file watcher for: " + dir);
 
@@ -37,43 +95,191 @@ public class FileWatcher implements Runnable {
     private void scanInitialFiles() {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
             for (Path entry : stream) {
-                if (!Files.isDirectory(entry)) {
-                    knownFiles.add(entry.getFileName().toString());
-                }
+                String name = entry.getFileName().toString();
+                Seen seen = stat(entry);
+                if (seen != null && !isTemporary(name)) knownFiles.put(name, seen);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // in-flight replicas are received as hidden ".name.part" files; only the final rename counts
+    private static boolean isTemporary(String fileName) {
+        return fileName.startsWith(".");
+    }
+
     @Override
     public void run() {
+        flusher.scheduleWithFixedDelay(this::flush, debounceMillis, debounceMillis, TimeUnit.MILLISECONDS);
         try {
             WatchService watcher = FileSystems.getDefault().newWatchService();
-            dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+            dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
 
             while (!Thread.currentThread().isInterrupted()) {
                 WatchKey key = watcher.take();
+                long now = System.currentTimeMillis();
                 for (WatchEvent<?> event : key.pollEvents()) {
-                    Path changed = (Path) event.context();
-                    String fileName = changed.toString();
-
-                    if (event.kind() == ENTRY_CREATE) {
-                        if (!knownFiles.contains(fileName)) {
-                            manager.handleFileAddition(fileName);
-                            knownFiles.add(fileName);
-                        }
-                    } else if (event.kind() == ENTRY_DELETE) {
-                        if (knownFiles.contains(fileName)) {
-                            manager.handleFileDeletion(fileName);
-                            knownFiles.remove(fileName);
-                        }
+                    if (event.kind() == OVERFLOW) {
+                        // events were lost, only a full look at the directory can tell what changed
+                        System.out.println("File watcher overflowed, rescanning " + dir);
+                        rescanRequested = true;
+                        continue;
                     }
+                    String fileName = event.context().toString();
+                    if (isTemporary(fileName)) continue;
+                    markDirty(fileName, now);
+                }
+                if (!key.reset()) {
+                    System.err.println("Watched directory is no longer accessible: " + dir);
+                    return;
                 }
-                key.reset();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            flusher.shutdownNow();
+            workers.shutdown();
+        }
+    }
+
+    private void markDirty(String fileName, long now) {
+        dirty.compute(fileName, (k, times) -> times == null ? new long[]{now, now} : new long[]{times[0], now});
+    }
+
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            if (rescanRequested) {
+                rescanRequested = false;
+                rescan(now);
+            }
+
+            Map<String, Long> added = new LinkedHashMap<>();
+            Map<String, Seen> addedSeen = new HashMap<>();
+            for (Map.Entry<String, long[]> e : dirty.entrySet()) {
+                String fileName = e.getKey();
+                long[] times = e.getValue();
+                if (times[1] > now) continue;
+                // wait until the file has been quiet for a window, but never hold a busy file forever
+                boolean quiet = now - times[1] >= debounceMillis;
+                boolean overdue = now - times[0] >= debounceMillis * MAX_DELAY_WINDOWS;
+                if (!(quiet || overdue) || inFlight.containsKey(fileName)) continue;
+                if (!dirty.remove(fileName, times)) continue; // a new event came in, next round
+
+                Seen before = knownFiles.get(fileName);
+                Seen current = stat(dir.resolve(fileName));
+                if (current != null && ReplicaCopies.contains(fileName)) {
+                    // written by the receiver: the node it came from does the replicating
+                    knownFiles.put(fileName, current);
+                } else if (current != null && before == null) {
+                    added.put(fileName, times[0]);
+                    addedSeen.put(fileName, current);
+                } else if (current != null && !current.equals(before)) {
+                    // the replica already has a copy, so only the changes travel
+                    submit(Map.of(fileName, times[0]), Map.of(fileName, current), () -> {
+                        List<String> missed = new ArrayList<>();
+                        manager.replicateFiles(List.of(fileName), true, missed);
+                        return missed;
+                    });
+                } else if (current == null && before != null) {
+                    ReplicaCopies.remove(fileName);
+                    submit(Map.of(fileName, times[0]), Map.of(), () -> {
+                        manager.handleFileDeletion(fileName);
+                        return List.of();
+                    });
+                }
+            }
+
+            List<String> addedNames = new ArrayList<>(added.keySet());
+            for (int from = 0; from < addedNames.size(); from += batchSize) {
+                List<String> batch = List.copyOf(addedNames.subList(from, Math.min(addedNames.size(), from + batchSize)));
+                Map<String, Long> since = new HashMap<>();
+                Map<String, Seen> seen = new HashMap<>();
+                batch.forEach(name -> {
+                    since.put(name, added.get(name));
+                    seen.put(name, addedSeen.get(name));
+                });
+                submit(since, seen, () -> {
+                    List<String> missed = new ArrayList<>();
+                    manager.replicateFiles(batch, false, missed);
+                    return missed;
+                });
+            }
+            if (!added.isEmpty()) System.out.println("Replicating " + added.size() + " new file(s)");
+        } catch (Exception e) {
+            // an exception would cancel the schedule
+            System.err.println("File watcher flush failed: " + e.getMessage());
+        }
+    }
+
+    // every name on disk or previously known gets looked at again
+    private void rescan(long now) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (!isTemporary(name)) markDirty(name, now - debounceMillis);
+            }
+        } catch (IOException e) {
+            System.err.println("Rescan of " + dir + " failed: " + e.getMessage());
+        }
+        knownFiles.keySet().forEach(name -> markDirty(name, now - debounceMillis));
+    }
+
+    // age of the oldest change seen on disk that has not been replicated yet, 0 when all caught up
+    private double lagSeconds() {
+        long oldest = Long.MAX_VALUE;
+        for (long[] times : dirty.values()) oldest = Math.min(oldest, times[0]);
+        for (long since : inFlight.values()) oldest = Math.min(oldest, since);
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest) / 1000.0;
+    }
+
+    // task returns the names that still need replicating. The others are recorded with the state they were
+    // replicated from (absent: deleted); the missed ones stay as they were and come back after RETRY_MILLIS.
+    // Both happen before the names leave inFlight, so the flusher never looks at a half-settled file.
+    private void submit(Map<String, Long> files, Map<String, Seen> state, Callable<Collection<String>> task) {
+        Set<String> fileNames = files.keySet();
+        inFlight.putAll(files);
+        try {
+            workers.execute(() -> {
+                Collection<String> missed;
+                try {
+                    missed = task.call();
+                } catch (Exception e) {
+                    System.err.println("Replication of " + fileNames.size() + " file(s) failed: " + e.getMessage());
+                    missed = fileNames;
+                }
+                long retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+                for (String name : fileNames) {
+                    if (missed.contains(name)) {
+                        // a newer event for the name keeps its own, earlier, time
+                        dirty.merge(name, new long[]{files.get(name), retryAt},
+                                (newer, retry) -> new long[]{Math.min(newer[0], retry[0]), newer[1]});
+                    } else if (state.containsKey(name)) {
+                        knownFiles.put(name, state.get(name));
+                    } else {
+                        knownFiles.remove(name);
+                    }
+                    inFlight.remove(name);
+                }
+                if (!missed.isEmpty()) {
+                    System.err.println("Retrying replication of " + missed.size() + " file(s) in " + RETRY_MILLIS + " ms");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fileNames.forEach(inFlight::remove);
+        }
+    }
+
+    private static Seen stat(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            return new Seen(attrs.lastModifiedTime().toMillis(), attrs.size());
+        } catch (IOException e) {
+            return null;
         }
     }
 }
@@ -0,0 +1,215 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PeerConnectionPool {
+    // long-lived replication connections per peer, so a burst of small files pays one handshake
+    // instead of one per file. A borrowed connection belongs to one thread until it is released.
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final AtomicLong requestIds = new AtomicLong();
+
+    private final int port;
+    private final int maxPerPeer;
+    // a peer that hangs or is cut off must fail the transfer, not park the sending thread for good
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private final class Peer {
+        final BlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+        final Semaphore permits = new Semaphore(maxPerPeer);
+    }
+
+    public PeerConnectionPool(int port, int maxPerPeer) {
+        this(port, maxPerPeer, 2000, 30_000);
+    }
+
+    public PeerConnectionPool(int port, int maxPerPeer, int connectTimeoutMs, int readTimeoutMs) {
+        this.port = port;
+        this.maxPerPeer = Math.max(1, maxPerPeer);
+        this.connectTimeoutMs = Math.max(0, connectTimeoutMs);
+        this.readTimeoutMs = Math.max(0, readTimeoutMs);
+    }
+
+    public Connection borrow(String ip) throws IOException {
+        Peer peer = peers.computeIfAbsent(ip, k -> new Peer());
+        try {
+            peer.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a connection to " + ip);
+        }
+        Connection c;
+        // most recently used first; anything idle for too long has probably been dropped by the peer
+        while ((c = peer.idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - c.lastUsed < IDLE_TIMEOUT_MS && c.channel.isOpen()) return c;
+            c.close();
+        }
+        try {
+            return new Connection(ip, port, connectTimeoutMs, readTimeoutMs);
+        } catch (IOException e) {
+            peer.permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection c) {
+        Peer peer = peers.get(c.ip);
+        c.lastUsed = System.currentTimeMillis();
+        peer.idle.offerFirst(c);
+        peer.permits.release();
+    }
+
+    // the connection is in an unknown state (I/O error, bad ack): drop it
+    public void invalidate(Connection c) {
+        c.close();
+        peers.get(c.ip).permits.release();
+    }
+
+    public static final class Connection {
+        final String ip;
+        final SocketChannel channel;
+        final DataInputStream in;
+        final int peerCapabilities;
+        long lastUsed = System.currentTimeMillis();
+
+        Connection(String ip, int port, int connectTimeoutMs, int readTimeoutMs) throws IOException {
+            this.ip = ip;
+            this.channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(ip, port), connectTimeoutMs);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSoTimeout(readTimeoutMs);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            // unbuffered: acks are tiny and must not be read ahead of. The socket's own stream, unlike
+            // Channels.newInputStream, honours SO_TIMEOUT, so a silent peer ends in a SocketTimeoutException.
+            this.in = new DataInputStream(channel.socket().getInputStream());
+            try {
+                ByteArrayOutputStream hello = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(hello);
+                dos.writeInt(ReplicationProtocol.MAGIC);
+                dos.writeByte(ReplicationProtocol.VERSION);
+                dos.writeInt(Compression.isEnabled() ? ReplicationProtocol.CAP_DEFLATE : 0);
+                write(hello.toByteArray());
+                if (in.readInt() != ReplicationProtocol.MAGIC || in.readByte() != ReplicationProtocol.VERSION) {
+                    throw new IOException("peer " + ip + " does not speak replication protocol v" + ReplicationProtocol.VERSION);
+                }
+                this.peerCapabilities = in.readInt();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // sends one file and waits for its acknowledgement. For a large file the receiver first says how much
+        // of this version it already holds from an interrupted attempt, and only the rest is sent.
+        public void sendFile(String fileName, Path file) throws IOException {
+            long requestId = requestIds.incrementAndGet();
+            try (FileChannel body = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = body.size();
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(header);
+                dos.writeByte(ReplicationProtocol.FILE);
+                dos.writeLong(requestId);
+                dos.writeUTF(fileName);
+                dos.writeLong(size);
+                dos.writeLong(Files.getLastModifiedTime(file).toMillis());
+                write(header.toByteArray());
+
+                long offset = 0;
+                if (size > ChunkedTransfer.CHUNK_SIZE) {
+                    if (in.readByte() != ReplicationProtocol.RESUME || in.readLong() != requestId) {
+                        throw new IOException("unexpected reply from " + ip + " for request " + requestId);
+                    }
+                    offset = in.readLong();
+                    if (offset < 0 || offset > size) throw new IOException("peer " + ip + " asked to resume at " + offset);
+                    if (offset > 0) System.out.println("Resuming " + fileName + " to " + ip + " at byte " + offset + " of " + size);
+                }
+
+                boolean compress = Compression.isEnabled()
+                        && (peerCapabilities & ReplicationProtocol.CAP_DEFLATE) != 0
+                        && Compression.worthCompressing(fileName, body, size);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                Compression.Meter meter = ChunkedTransfer.send(body, size, offset, compress, out, channel);
+                out.flush();
+                if (compress) {
+                    Compression.record(meter);
+                    System.out.println("Compressed " + fileName + " for " + ip + ": " + meter);
+                }
+            }
+            awaitAck(requestId);
+        }
+
+        // the replica's block signature of its copy, or null if it has none
+        public DeltaSync.Signature requestSignature(String fileName, int blockSize) throws IOException {
+            long requestId = requestIds.incrementAndGet();
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(frame);
+            dos.writeByte(ReplicationProtocol.SIGNATURE_REQUEST);
+            dos.writeLong(requestId);
+            dos.writeUTF(fileName);
+            dos.writeInt(blockSize);
+            write(frame.toByteArray());
+
+            if (in.readByte() != ReplicationProtocol.SIGNATURE || in.readLong() != requestId) {
+                throw new IOException("unexpected reply from " + ip + " for signature request " + requestId);
+            }
+            if (!in.readBoolean()) return null;
+            // length-prefixed so it can be read in one go instead of field by field off the socket
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return DeltaSync.readSignature(new DataInputStream(new ByteArrayInputStream(body)));
+        }
+
+        // sends only what the replica's copy lacks; returns the literal bytes that went over the wire
+        public long sendDelta(String fileName, Path file, DeltaSync.Signature sig) throws IOException {
+            long requestId = requestIds.incrementAndGet();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeByte(ReplicationProtocol.DELTA);
+            out.writeLong(requestId);
+            out.writeUTF(fileName);
+            out.writeLong(sig.fileSize());
+            out.writeInt(sig.blockSize());
+            long literal = DeltaSync.writeDelta(file, sig, out);
+            out.flush();
+            awaitAck(requestId);
+            return literal;
+        }
+
+        void awaitAck(long requestId) throws IOException {
+            byte type = in.readByte();
+            long ackId = in.readLong();
+            byte status = in.readByte();
+            String message = in.readUTF();
+            if (type != ReplicationProtocol.ACK || ackId != requestId) {
+                throw new IOException("unexpected reply from " + ip + " for request " + requestId);
+            }
+            if (status != ReplicationProtocol.OK) {
+                throw new IOException("peer " + ip + " rejected request " + requestId + ": " + message);
+            }
+        }
+
+        void write(byte[] bytes) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+
+        void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
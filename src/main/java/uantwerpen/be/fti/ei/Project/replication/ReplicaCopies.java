@@ -0,0 +1,58 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class ReplicaCopies {
+    // the files this node holds as another node's replica. Only the node a file comes from replicates it:
+    // the receiver writes into the watched directory, so a replica that pushed its copy on would start
+    // the copies bouncing between the replicas forever. One empty marker per name under
+    // <storage>/.replicas keeps the list across restarts; the watcher ignores hidden names.
+    private static final String DIR = ".replicas";
+    private static final Set<String> names = ConcurrentHashMap.newKeySet();
+    private static volatile Path markers;
+
+    private ReplicaCopies() {}
+
+    public static void load(Path storageDir) {
+        Path dir = storageDir.resolve(DIR);
+        names.clear();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) names.add(p.getFileName().toString());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not load the replica list: " + e.getMessage());
+        }
+        markers = dir;
+        if (!names.isEmpty()) System.out.println("Holding " + names.size() + " replica cop(ies) of other nodes' files");
+    }
+
+    public static boolean contains(String fileName) {
+        return names.contains(fileName);
+    }
+
+    // called by the receiver before the copy is moved into place, so the watcher never sees it unmarked
+    static void add(String fileName) throws IOException {
+        if (!names.add(fileName) || markers == null) return;
+        try {
+            Files.createFile(markers.resolve(fileName));
+        } catch (FileAlreadyExistsException ignored) {
+        }
+    }
+
+    public static void remove(String fileName) {
+        if (!names.remove(fileName) || markers == null) return;
+        try {
+            Files.deleteIfExists(markers.resolve(fileName));
+        } catch (IOException e) {
+            System.err.println("Could not drop replica marker of " + fileName + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,135 +1,277 @@
 package uantwerpen.be.fti.ei.Project.replication;
 
-import org.springframework.web.client.RestTemplate;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import uantwerpen.be.fti.ei.Project.Discovery.RingCache;
 import uantwerpen.be.fti.ei.Project.NamingServer.HashingUtil;
+import uantwerpen.be.fti.ei.Project.config.PeerClient;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public class ReplicationManager {
     // this class is the manager, will delete and add files
     private final String nodeName;
     private final String ipAddress;
     private final String namingServerUrl;
-    private final RestTemplate restTemplate;
+    private final PeerClient peerClient;
     private final String storageDirectory;
+    private final int batchSize;
+    // copies, the local one included, that must be persisted before a write counts as done
+    private final int writeQuorum;
+    // a batch gives up waiting for a file's quorum after this long and counts it as missed
+    private final long writeTimeoutMs;
+    private final RingCache ringCache;
+    private final ExecutorService fanOut = Executors.newVirtualThreadPerTaskExecutor();
+    // per file, from the start of the fan-out until the write quorum is reached or out of reach
+    private final Timer quorumReached = Metrics.timer("replication.write", "outcome", "quorum");
+    private final Timer quorumMissed = Metrics.timer("replication.write", "outcome", "missed");
 
 
     public ReplicationManager(String nodeName, String ipAddress, String namingServerUrl,
-                              RestTemplate restTemplate, String storageDirectory) {
+                              PeerClient peerClient, String storageDirectory, int batchSize, int writeQuorum,
+                              RingCache ringCache) {
+        this(nodeName, ipAddress, namingServerUrl, peerClient, storageDirectory, batchSize, writeQuorum, 60_000, ringCache);
+    }
+
+    public ReplicationManager(String nodeName, String ipAddress, String namingServerUrl,
+                              PeerClient peerClient, String storageDirectory, int batchSize, int writeQuorum,
+                              long writeTimeoutMs, RingCache ringCache) {
         this.nodeName = nodeName;
         this.ipAddress = ipAddress;
         this.namingServerUrl = namingServerUrl;
-        this.restTemplate = restTemplate;
+        this.peerClient = peerClient;
         this.storageDirectory = storageDirectory;
+        this.batchSize = Math.max(1, batchSize);
+        this.writeQuorum = Math.max(1, writeQuorum);
+        this.writeTimeoutMs = Math.max(1, writeTimeoutMs);
+        this.ringCache = ringCache;
     }
 
     // Phase 1: Starting - Initial replication
     public void replicateInitialFiles() {
         System.out.println("Starting initial replication for directory: " + storageDirectory);
-        try {
-            Path storagePath = Paths.get(storageDirectory);
-            if (!Files.exists(storagePath)) {
-                System.err.println("Storage directory missing: " + storagePath);
-                return;
-            }
-
-            AtomicInteger replicatedCount = new AtomicInteger();
-            Files.list(storagePath)
-                    .filter(Files::isRegularFile)
-                    .forEach(file -> {
-                        String fileName = file.getFileName().toString();
-                        int fileHash = HashingUtil.generateHash(fileName);
-
-                        // Get target node from naming server
-                        Map<String, String> response = restTemplate.getForObject(
-                                namingServerUrl + "/api/replicate?hash=" + fileHash,
-                                Map.class);
-
-                        if (response == null || !response.containsKey("ip")) {
-                            System.out.println("No replication target found for file: " + fileName + " (probably alone in ring)");
-                            return;
-                        }
-
-                        String targetIp = response.get("ip");
-
-                        if (targetIp.equals(ipAddress)) {
-                            System.out.println("Skipping replication of " + fileName + ": target is self (" + targetIp + ")");
-                            return;
-                        }
-
-                        try {
-                            byte[] fileData = Files.readAllBytes(file);
-                            FileReplicator.transferFile(ipAddress, targetIp, fileName, fileData);
-
-                            // Update naming server about replication
-                            restTemplate.postForObject(
-                                    namingServerUrl + "/api/files/replicate",
-                                    Map.of(
-                                            "fileName", fileName,
-                                            "ownerIp", ipAddress,
-                                            "replicaIp", targetIp),
-                                    Void.class);
-
-                            replicatedCount.getAndIncrement();
-
-                        } catch (IOException e) {
-                            System.err.println("Error during file replication: " + fileName);
-                            e.printStackTrace();
-                        }
-                    });
-            System.out.println("Replicated " + replicatedCount + " file(s) to other node(s)");
+        Path storagePath = Paths.get(storageDirectory);
+        if (!Files.exists(storagePath)) {
+            System.err.println("Storage directory missing: " + storagePath);
+            return;
+        }
 
+        List<String> fileNames;
+        try (Stream<Path> files = Files.list(storagePath)) {
+            fileNames = files.filter(Files::isRegularFile)
+                    .map(f -> f.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .toList();
         } catch (IOException e) {
             System.err.println("Replication error: " + e.getMessage());
+            return;
         }
+
+        int replicatedCount = replicateFiles(fileNames);
+        System.out.println("Replicated " + replicatedCount + " file(s) to other node(s)");
     }
 
     // Phase 2: Update - Handle new files
     public void handleFileAddition(String fileName) {
-        int fileHash = HashingUtil.generateHash(fileName);
-        Map<String, String> response = restTemplate.getForObject(
-                namingServerUrl + "/api/replicate?hash=" + fileHash,
-                Map.class);
+        replicateFiles(List.of(fileName));
+    }
+
+    // Phase 2: Update - Handle edited files; the replica already has a copy, so only the changes travel
+    public void handleFileModification(String fileName) {
+        replicateFiles(List.of(fileName), true);
+    }
 
-        if (response != null) {
-            String targetIp = response.get("ip");
+    public int replicateFiles(List<String> fileNames) {
+        return replicateFiles(fileNames, false);
+    }
 
-            if (targetIp.equals(ipAddress)) {
-                System.out.println("Skipping replication of " + fileName + ": target is self (" + targetIp + ")");
-                return;
+    // at most two naming server calls per batch instead of two per file: replica lists come from the ring cache,
+    // one call registers the copies
+    public int replicateFiles(List<String> fileNames, boolean delta) {
+        return replicateFiles(fileNames, delta, new ArrayList<>());
+    }
+
+    // as above; the names worth another try (the naming server could not be asked, or the write quorum was
+    // missed) are added to missed. A file without any target is not: a retry would not find one either.
+    public int replicateFiles(List<String> fileNames, boolean delta, List<String> missed) {
+        // copies received from other nodes are theirs to replicate
+        fileNames = fileNames.stream().filter(name -> !ReplicaCopies.contains(name)).toList();
+        int replicated = 0;
+        for (int from = 0; from < fileNames.size(); from += batchSize) {
+            List<String> batch = fileNames.subList(from, Math.min(fileNames.size(), from + batchSize));
+            replicated += replicateBatch(batch, delta, missed);
+        }
+        return replicated;
+    }
+
+    // every file goes to all of its replicas at once; the batch returns as soon as each file has reached the
+    // write quorum, the remaining copies finish in the background and are registered when they land
+    private int replicateBatch(List<String> fileNames, boolean delta, List<String> missed) {
+        Map<String, List<String>> replicas = replicaLists(fileNames);
+        if (replicas == null) {
+            missed.addAll(fileNames);
+            return 0;
+        }
+
+        Queue<Map<String, String>> landed = new ConcurrentLinkedQueue<>();
+        Map<String, CompletableFuture<Boolean>> quorums = new LinkedHashMap<>();
+        int withoutTarget = 0;
+        List<CompletableFuture<?>> transfers = new ArrayList<>();
+        for (String fileName : fileNames) {
+            List<String> targets = replicas.getOrDefault(fileName, List.of()).stream()
+                    .filter(ip -> !ip.equals(ipAddress))
+                    .toList();
+            if (targets.isEmpty()) {
+                System.out.println("No replication target found for file: " + fileName + " (probably alone in ring)");
+                if (writeQuorum > 1) {
+                    quorumMissed.record(0, TimeUnit.NANOSECONDS);
+                    withoutTarget++;
+                }
+                continue;
+            }
+
+            // the local copy counts towards the quorum. Too few targets is a missed quorum, not a smaller one:
+            // the copies still go out, but the write does not count as durable
+            if (targets.size() < writeQuorum - 1) {
+                System.err.println("Only " + targets.size() + " replica target(s) for " + fileName
+                        + ", the write quorum of " + writeQuorum + " cannot be reached");
             }
+            QuorumWrite write = new QuorumWrite(writeQuorum - 1, targets.size());
+            write.reached.completeOnTimeout(false, writeTimeoutMs, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            write.reached.thenAccept(ok -> (ok ? quorumReached : quorumMissed)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+            quorums.put(fileName, write.reached);
+            Path file = Paths.get(storageDirectory, fileName);
+            for (String targetIp : targets) {
+                transfers.add(CompletableFuture.runAsync(() -> send(fileName, file, targetIp, delta), fanOut)
+                        .whenComplete((v, ex) -> {
+                            if (ex == null) {
+                                landed.add(Map.of("fileName", fileName, "ownerIp", ipAddress, "replicaIp", targetIp));
+                                write.succeeded();
+                            } else {
+                                System.err.println("Error during file replication: " + fileName + " -> " + targetIp
+                                        + ": " + ex.getCause().getMessage());
+                                write.failed();
+                            }
+                        }));
+            }
+        }
+
+        int acknowledged = 0;
+        for (Map.Entry<String, CompletableFuture<Boolean>> quorum : quorums.entrySet()) {
+            if (quorum.getValue().join()) acknowledged++;
+            else missed.add(quorum.getKey());
+        }
+        int missedQuorum = quorums.size() + withoutTarget - acknowledged;
+        if (missedQuorum > 0) {
+            System.err.println(missedQuorum + " file(s) did not reach a write quorum of " + writeQuorum);
+        }
+
+        // Update naming server about all replications of this batch at once
+        register(drain(landed));
+        CompletableFuture.allOf(transfers.toArray(new CompletableFuture[0]))
+                .whenComplete((v, ex) -> register(drain(landed)));
+        return acknowledged;
+    }
 
-            try {
-                byte[] fileData = Files.readAllBytes(Paths.get(storageDirectory, fileName));
-                FileReplicator.transferFile(ipAddress, targetIp, fileName, fileData);
-
-                restTemplate.postForObject(
-                        namingServerUrl + "/api/files/replicate",
-                        Map.of(
-                                "fileName", fileName,
-                                "ownerIp", ipAddress,
-                                "replicaIp", targetIp),
-                        Void.class);
-            } catch (IOException e) {
-                e.printStackTrace();
+    // placed locally from the cached ring; the naming server is only asked until the first ring arrives
+    private Map<String, List<String>> replicaLists(List<String> fileNames) {
+        if (ringCache != null && ringCache.isReady()) {
+            Map<String, List<String>> replicas = new HashMap<>();
+            for (String fileName : fileNames) replicas.put(fileName, ringCache.replicasOf(fileName));
+            return replicas;
+        }
+        try {
+            Map<String, Map<String, List<String>>> response = peerClient.postForObject(
+                    namingServerUrl + "/api/replicate/preference",
+                    Map.of("files", fileNames),
+                    Map.class);
+            return response == null || response.get("replicas") == null ? Map.of() : response.get("replicas");
+        } catch (Exception e) {
+            System.err.println("Could not fetch replication targets: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void send(String fileName, Path file, String targetIp, boolean delta) {
+        try {
+            if (delta) {
+                FileReplicator.syncFile(ipAddress, targetIp, fileName, file);
+            } else {
+                FileReplicator.transferFile(ipAddress, targetIp, fileName, file);
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void register(List<Map<String, String>> registrations) {
+        if (registrations.isEmpty()) return;
+        try {
+            peerClient.postForObject(namingServerUrl + "/api/files/replicate/batch", registrations, Map.class);
+        } catch (Exception e) {
+            System.err.println("Could not register " + registrations.size() + " replication(s): " + e.getMessage());
+        }
+    }
+
+    private static List<Map<String, String>> drain(Queue<Map<String, String>> queue) {
+        List<Map<String, String>> drained = new ArrayList<>();
+        Map<String, String> next;
+        while ((next = queue.poll()) != null) drained.add(next);
+        return drained;
+    }
+
+    // completes with true once `needed` copies succeeded, with false once that can no longer happen
+    private static final class QuorumWrite {
+        final CompletableFuture<Boolean> reached = new CompletableFuture<>();
+        private final int needed;
+        private int pending;
+        private int succeeded;
+
+        QuorumWrite(int needed, int copies) {
+            this.needed = Math.max(0, needed);
+            this.pending = copies;
+            if (this.needed == 0) reached.complete(true);
+            else if (copies < this.needed) reached.complete(false);
+        }
+
+        synchronized void succeeded() {
+            pending--;
+            if (++succeeded >= needed) reached.complete(true);
+        }
+
+        synchronized void failed() {
+            pending--;
+            if (succeeded + pending < needed) reached.complete(false);
         }
     }
 
     // Phase 2: Update - Handle file deletions
     public void handleFileDeletion(String fileName) {
-        restTemplate.delete(namingServerUrl + "/api/files/" + fileName + "/replicas/" + ipAddress);
+        peerClient.delete(namingServerUrl + "/api/files/" + fileName + "/replicas/" + ipAddress);
     }
 
     // Phase 3: Shutdown - Transfer replicated files
     public void transferReplicatedFiles() {
         // Get list of files we're responsible for
-        Map<String, String>[] replicatedFiles = restTemplate.getForObject(
+        Map<String, String>[] replicatedFiles = peerClient.getForObject(
                 namingServerUrl + "/api/nodes/" + HashingUtil.generateHash(nodeName) + "/replicated",
                 Map[].class);
 
@@ -139,11 +281,10 @@ public class ReplicationManager {
                 String newOwner = findNewOwner(fileInfo.get("currentOwner"));
 
                 try {
-                    byte[] fileData = Files.readAllBytes(Paths.get(storageDirectory, fileName));
-                    FileReplicator.transferFile(ipAddress, newOwner, fileName, fileData);
+                    FileReplicator.transferFile(ipAddress, newOwner, fileName, Paths.get(storageDirectory, fileName));
 
                     // Update naming server
-                    restTemplate.put(
+                    peerClient.put(
                             namingServerUrl + "/api/files/" + fileName + "/owner",
                             Map.of("newOwner", newOwner));
                 } catch (IOException e) {
@@ -156,7 +297,7 @@ public class ReplicationManager {
     private String findNewOwner(String currentOwner) {
         // Implementation to find the new owner based on hash ring
         // This would query the naming server for the appropriate node
-        return restTemplate.getForObject(
+        return peerClient.getForObject(
                 namingServerUrl + "/api/nodes/" + currentOwner + "/nextowner",
                 String.class);
     }
@@ -0,0 +1,37 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+public final class ReplicationProtocol {
+    // framing on the replication port (8082). A connection starts with MAGIC + VERSION + int capabilities
+    // from both sides; a feature is used only when both sides announce it. Then any number of frames:
+    //   sender   -> FILE, long requestId, UTF name, long size, long version
+    //   receiver -> RESUME, long requestId, long offset      (only for files larger than one chunk)
+    //   sender   -> chunks from offset on, then the whole-file digest (see ChunkedTransfer)
+    //   receiver -> ACK,  long requestId, byte status, UTF message
+    // delta sync of a file the receiver already has (see DeltaSync):
+    //   sender   -> SIGNATURE_REQUEST, long requestId, UTF name, int blockSize
+    //   receiver -> SIGNATURE, long requestId, boolean present, [int length, long size, int blockSize, int n, n x (int weak, 16 byte md5)]
+    //   sender   -> DELTA, long requestId, UTF name, long basisSize, int blockSize, ops..., END
+    //   receiver -> ACK
+    public static final int PORT = 8082;
+    public static final int MAGIC = 0x424F4252; // "BOBR"
+    public static final byte VERSION = 3;
+
+    // capability bits
+    public static final int CAP_DEFLATE = 1;
+
+    // chunk encodings
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+
+    public static final byte FILE = 1;
+    public static final byte ACK = 2;
+    public static final byte SIGNATURE_REQUEST = 3;
+    public static final byte SIGNATURE = 4;
+    public static final byte DELTA = 5;
+    public static final byte RESUME = 6;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    private ReplicationProtocol() {}
+}
@@ -0,0 +1,147 @@
+package uantwerpen.be.fti.ei.Project.storage;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public final class FileDownload {
+    // serves a stored file straight from disk. On Tomcat's NIO connector the body goes out with
+    // sendfile (the servlet only sets the request attributes, the connector does the zero-copy write
+    // after the handler returns); elsewhere FileChannel.transferTo streams it without a heap copy.
+    // Supports a single byte range (Range/If-Range), conditional GETs on ETag and HEAD.
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_NAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    // below this a plain write is as cheap as handing the file to the poller (same as Tomcat's DefaultServlet)
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    private FileDownload() {}
+
+    public static void serve(Path dir, String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path file = resolve(dir, fileName);
+        BasicFileAttributes attrs = file == null ? null : attributes(file);
+        if (attrs == null || !attrs.isRegularFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        String etag = etag(size, modified);
+        response.setHeader("ETag", etag);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setDateHeader("Last-Modified", modified);
+        response.setContentType("application/octet-stream");
+
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0, end = size; // [start, end)
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        // a range against a different version would splice two files together: send the whole file instead
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                response.setHeader("Content-Range", "bytes */" + size);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+            }
+        }
+        response.setContentLengthLong(end - start);
+        if ("HEAD".equals(request.getMethod()) || end == start) return;
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) && end - start >= SENDFILE_MIN_SIZE) {
+            request.setAttribute(SENDFILE_NAME, file.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        try (FileChannel body = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                long sent = body.transferTo(position, end - position, out);
+                if (sent <= 0) throw new IOException(fileName + " shrank while it was being sent");
+                position += sent;
+            }
+        }
+    }
+
+    // stored files only: no paths, no hidden in-flight transfers (.name.part, .name.delta)
+    static Path resolve(Path dir, String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.startsWith(".")
+                || fileName.contains("/") || fileName.contains("\\")) {
+            return null;
+        }
+        Path file = dir.resolve(fileName).normalize();
+        return file.getParent() != null && file.getParent().equals(dir.normalize()) ? file : null;
+    }
+
+    // strong validator from what the file watcher also uses to tell versions apart
+    static String etag(long size, long modified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    // {start, endExclusive} for one satisfiable range, {} to ignore the header (multiple ranges or a
+    // malformed value, so the whole file goes out), null if it cannot be satisfied
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) return new long[0];
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return new long[0];
+        try {
+            String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range: the last n bytes
+                long n = Long.parseLong(last);
+                if (n <= 0 || size == 0) return null;
+                return new long[]{Math.max(0, size - n), size};
+            }
+            long start = Long.parseLong(first);
+            long lastByte = last.isEmpty() ? Long.MAX_VALUE - 1 : Long.parseLong(last);
+            if (start < 0 || lastByte < start) return new long[0];
+            if (start >= size) return null;
+            long end = Math.min(size, lastByte + 1);
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
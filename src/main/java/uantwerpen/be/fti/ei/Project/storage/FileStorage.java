@@ -25,6 +25,10 @@ public class FileStorage {
         return Files.exists(Paths.get(BASE + ip + "/" + fileName + ".txt"));
     }
 
+    public static long fileSize(String ip, String fileName) throws IOException {
+        return Files.size(Paths.get(BASE + ip + "/" + fileName + ".txt"));
+    }
+
     public static byte[] readFileBytes(String ip, String fileName) throws IOException {
         Path filePath = Paths.get(BASE + ip + "/" + fileName + ".txt");
         if (!Files.exists(filePath)) {
@@ -6,6 +6,8 @@ import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -13,27 +15,105 @@ import java.util.TreeMap;
 public class JsonService {
     private static final String NODES = "nodes.json";
     private static final String FILES = "stored_files.json";
+    private static final String OWNERS = "file_owners.json";
+    // last log position the snapshot covers plus the ring hash its node keys use, and the replication vote (see NamingCluster)
+    private static final String META = "naming_meta.json";
+    private static final String VOTE = "naming_vote.json";
+    public static final Path WAL_DIR = Paths.get("naming_wal");
     private static final Gson gson = new Gson();
 
-    public static void saveToJson(Map<Integer, Node> map) {
-        try (Writer w = new FileWriter(NODES)) {
-            gson.toJson(map, w);
-        } catch (IOException e) { e.printStackTrace(); }
+    public static boolean saveToJson(Map<Long, Node> map) {
+        try {
+            writeAtomically(NODES, map);
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
     }
 
-    public static TreeMap<Integer, Node> loadFromJson() {
+    public static TreeMap<Long, Node> loadFromJson() {
         File f = new File(NODES);
         if (!f.exists()) return new TreeMap<>();
         try (Reader r = new FileReader(f)) {
-            Type type = new TypeToken<TreeMap<Integer, Node>>(){}.getType();
+            Type type = new TypeToken<TreeMap<Long, Node>>(){}.getType();
             return gson.fromJson(r, type);
         } catch (IOException e) { e.printStackTrace(); return new TreeMap<>(); }
     }
 
-    public static void saveStoredFiles(Map<String, Set<String>> files) {
-        try (Writer w = new FileWriter(FILES)) {
-            gson.toJson(files, w);
-        } catch (IOException e) { e.printStackTrace(); }
+    public static boolean saveStoredFiles(Map<String, Set<String>> files) {
+        try {
+            writeAtomically(FILES, files);
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
+    }
+
+    public static boolean saveFileOwners(Map<String, String> owners) {
+        try {
+            writeAtomically(OWNERS, owners);
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
+    }
+
+    public static Map<String, String> loadFileOwners() {
+        File f = new File(OWNERS);
+        if (!f.exists()) return new TreeMap<>();
+        try (Reader r = new FileReader(f)) {
+            Type type = new TypeToken<TreeMap<String, String>>(){}.getType();
+            return gson.fromJson(r, type);
+        } catch (IOException e) { e.printStackTrace(); return new TreeMap<>(); }
+    }
+
+    public static boolean saveMeta(long seq, long term, String ringHash) {
+        try {
+            writeAtomically(META, Map.of("seq", seq, "term", term, "hash", ringHash));
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
+    }
+
+    // {seq, term} of the last snapshot, zeros if there is none
+    public static long[] loadMeta() {
+        Map<String, Double> meta = loadMap(META);
+        return new long[]{meta.getOrDefault("seq", 0.0).longValue(), meta.getOrDefault("term", 0.0).longValue()};
+    }
+
+    // ring hash of the last snapshot, null if there is none or it predates the setting (legacy hashes)
+    public static String loadRingHash() {
+        Object hash = loadMap(META).get("hash");
+        return hash instanceof String name ? name : null;
+    }
+
+    public static boolean saveVote(long term, String votedFor) {
+        try {
+            Map<String, Object> vote = new TreeMap<>();
+            vote.put("term", term);
+            if (votedFor != null) vote.put("votedFor", votedFor);
+            writeAtomically(VOTE, vote);
+            return true;
+        } catch (IOException e) { e.printStackTrace(); return false; }
+    }
+
+    public static Map<String, Object> loadVote() {
+        return loadMap(VOTE);
+    }
+
+    private static <V> Map<String, V> loadMap(String name) {
+        File f = new File(name);
+        if (!f.exists()) return new TreeMap<>();
+        try (Reader r = new FileReader(f)) {
+            Type type = new TypeToken<TreeMap<String, Object>>(){}.getType();
+            Map<String, V> map = gson.fromJson(r, type);
+            return map == null ? new TreeMap<>() : map;
+        } catch (IOException e) { e.printStackTrace(); return new TreeMap<>(); }
+    }
+
+    // write + fsync a temp file, then rename it over the target so readers never see half a snapshot
+    private static void writeAtomically(String target, Object value) throws IOException {
+        Path tmp = Paths.get(target + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            gson.toJson(value, w);
+            w.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp, Paths.get(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     public static Map<String, Set<String>> loadStoredFiles() {
@@ -0,0 +1,284 @@
+package uantwerpen.be.fti.ei.Project.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+public class MutationLog implements Closeable {
+    // append-only log of naming server mutations, one writer thread fsyncs whole batches at once (group commit)
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Gson gson = new Gson();
+
+    public static class Entry {
+        public long seq;
+        // leader term the entry was written in; absent (0) in logs from before replication
+        public Long term;
+        public String op;
+        public Long hash;
+        public Long id;
+        public String nodeName;
+        public String ip;
+        public String file;
+        public Boolean owner;
+        public Boolean overloaded;
+
+        public static Entry addNode(long hash, String nodeName, String ip) {
+            Entry e = of("ADD_NODE");
+            e.hash = hash; e.nodeName = nodeName; e.ip = ip;
+            return e;
+        }
+
+        public static Entry removeNode(long hash) {
+            Entry e = of("REMOVE_NODE");
+            e.hash = hash;
+            return e;
+        }
+
+        public static Entry setPrevious(long hash, long id) {
+            Entry e = of("SET_PREVIOUS");
+            e.hash = hash; e.id = id;
+            return e;
+        }
+
+        public static Entry setNext(long hash, long id) {
+            Entry e = of("SET_NEXT");
+            e.hash = hash; e.id = id;
+            return e;
+        }
+
+        public static Entry addFile(String ip, String file, boolean owner) {
+            Entry e = of("ADD_FILE");
+            e.ip = ip; e.file = file; e.owner = owner;
+            return e;
+        }
+
+        public static Entry removeFile(String ip, String file) {
+            Entry e = of("REMOVE_FILE");
+            e.ip = ip; e.file = file;
+            return e;
+        }
+
+        public static Entry dropFiles(String ip) {
+            Entry e = of("DROP_FILES");
+            e.ip = ip;
+            return e;
+        }
+
+        // a node above the placement load bound gets no new files until it is back under it
+        public static Entry setOverloaded(long hash, boolean overloaded) {
+            Entry e = of("SET_OVERLOADED");
+            e.hash = hash; e.overloaded = overloaded;
+            return e;
+        }
+
+        private static Entry of(String op) {
+            Entry e = new Entry();
+            e.op = op;
+            return e;
+        }
+    }
+
+    private record Pending(byte[] line, long rotateTo, CompletableFuture<Void> done) {}
+
+    private final Path dir;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private long lastSeq;
+    private long sinceRotation;
+    private volatile boolean closed;
+
+    public MutationLog(Path dir, long lastSeq) throws IOException {
+        this.dir = dir;
+        this.lastSeq = lastSeq;
+        Files.createDirectories(dir);
+        // never append behind a possibly torn tail: every run starts a fresh segment
+        FileChannel first = openSegment(lastSeq + 1);
+        this.writer = new Thread(() -> writeLoop(first), "naming-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // replays the entries after snapshotSeq in order and returns the last sequence number applied
+    // (snapshotSeq if there is none). Segments the snapshot already covers can survive a crash between
+    // writing the snapshot and deleting them; their entries are skipped, not applied a second time.
+    public static long replay(Path dir, long snapshotSeq, Consumer<Entry> consumer) {
+        long last = snapshotSeq;
+        for (Path segment : segments(dir)) {
+            try (BufferedReader r = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    Entry e;
+                    try {
+                        e = gson.fromJson(line, Entry.class);
+                    } catch (JsonParseException ex) {
+                        System.err.println("Skipping torn WAL record in " + segment.getFileName());
+                        break;
+                    }
+                    if (e.seq <= snapshotSeq) continue;
+                    consumer.accept(e);
+                    last = Math.max(last, e.seq);
+                }
+            } catch (IOException e) {
+                System.err.println("WAL replay failed for " + segment + ": " + e.getMessage());
+            }
+        }
+        return last;
+    }
+
+    // queues an entry; the future completes once it (and everything before it) is on disk
+    public synchronized CompletableFuture<Void> append(Entry e) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IOException("mutation log closed"));
+            return done;
+        }
+        e.seq = ++lastSeq;
+        sinceRotation++;
+        queue.add(new Pending((gson.toJson(e) + "\n").getBytes(StandardCharsets.UTF_8), -1, done));
+        return done;
+    }
+
+    // a follower's copy of an entry the leader already numbered; it must follow on directly
+    public synchronized CompletableFuture<Void> appendReplicated(Entry e) {
+        if (e.seq != lastSeq + 1) {
+            return CompletableFuture.failedFuture(new IllegalStateException(
+                    "entry " + e.seq + " does not follow " + lastSeq));
+        }
+        // append numbers it lastSeq + 1, which is the leader's number
+        return append(e);
+    }
+
+    public synchronized long lastSeq() { return lastSeq; }
+
+    // after a snapshot install: the log continues at seq + 1 and every older segment goes, including
+    // any tail this instance wrote that the new leader never had
+    public CompletableFuture<Void> resetTo(long seq) {
+        CompletableFuture<Long> rotated;
+        synchronized (this) {
+            lastSeq = seq;
+            rotated = rotate();
+        }
+        return rotated.thenAccept(start -> {
+            for (Path segment : segments(dir)) {
+                if (startOf(segment) == start) continue;
+                try {
+                    Files.deleteIfExists(segment);
+                } catch (IOException e) {
+                    System.err.println("Could not delete WAL segment " + segment + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // closes the current segment and continues in a new one; everything below the returned
+    // sequence number lives in older segments, which can go once a snapshot covers them
+    public synchronized CompletableFuture<Long> rotate() {
+        long next = lastSeq + 1;
+        sinceRotation = 0;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(null, next, done));
+        return done.thenApply(v -> next);
+    }
+
+    public synchronized long entriesSinceRotation() { return sinceRotation; }
+
+    // deletes all segments that only hold entries below seq
+    public void deleteSegmentsBefore(long seq) {
+        for (Path segment : segments(dir)) {
+            if (startOf(segment) >= seq) break;
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                System.err.println("Could not delete WAL segment " + segment + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeLoop(FileChannel initial) {
+        FileChannel channel = initial;
+        List<Pending> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                if (queue.isEmpty()) break;
+            }
+            queue.drainTo(batch);
+            List<CompletableFuture<Void>> written = new ArrayList<>();
+            try {
+                for (Pending p : batch) {
+                    if (p.rotateTo() >= 0) {
+                        channel.force(false);
+                        channel.close();
+                        channel = openSegment(p.rotateTo());
+                    } else if (p.line() != null) {
+                        ByteBuffer buf = ByteBuffer.wrap(p.line());
+                        while (buf.hasRemaining()) channel.write(buf);
+                    }
+                    written.add(p.done());
+                }
+                // one fsync for the whole batch
+                channel.force(false);
+                written.forEach(f -> f.complete(null));
+            } catch (IOException e) {
+                System.err.println("WAL write failed: " + e.getMessage());
+                batch.forEach(p -> p.done().completeExceptionally(e));
+            }
+            batch.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private FileChannel openSegment(long startSeq) throws IOException {
+        Path segment = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, startSeq, SEGMENT_SUFFIX));
+        return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static List<Path> segments(Path dir) {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            System.err.println("Cannot list WAL directory " + dir + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    @Override
+    public void close() {
+        // flush whatever is queued, then stop the writer
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            if (closed) return;
+            last = new CompletableFuture<>();
+            queue.add(new Pending(null, -1, last));
+            closed = true;
+        }
+        last.join();
+        writer.interrupt();
+    }
+}
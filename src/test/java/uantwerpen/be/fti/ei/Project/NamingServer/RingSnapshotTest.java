@@ -0,0 +1,164 @@
+package uantwerpen.be.fti.ei.Project.NamingServer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import uantwerpen.be.fti.ei.Project.Bootstrap.Node;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class RingSnapshotTest {
+    // one point per node, so a file hashed onto a node's own hash belongs to that node
+    private final TreeMap<Long, Node> nodeMap = nodeMap(5);
+    private final List<Long> ids = new ArrayList<>(nodeMap.keySet());
+
+    @Test
+    void withoutOverloadPlacementFollowsTheRing() {
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+        for (int k = 0; k < ids.size(); k++) {
+            long hash = ids.get(k);
+            assertEquals(ring.ownerIndex(hash), ring.placementIndex(hash));
+            assertEquals(ip(k), ring.ownerOf(hash));
+            assertEquals(ip(k), ring.ringOwnerOf(hash));
+        }
+        // past the last point wraps to the first
+        assertEquals(ip(0), ring.ownerOf(ids.get(ids.size() - 1) + 1));
+    }
+
+    @Test
+    void overloadedOwnerPassesNewFilesOn() {
+        overload(1, 2);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+
+        assertEquals(ip(3), ring.ownerOf(ids.get(1)));
+        assertEquals(ip(3), ring.ownerOf(ids.get(2)));
+        assertEquals(ip(3), ring.ownerOf(ids.get(0) + 1));
+        assertEquals(ip(0), ring.ownerOf(ids.get(0)));
+        // files already placed keep their ring owner
+        assertEquals(ip(1), ring.ringOwnerOf(ids.get(1)));
+        assertEquals(ip(2), ring.ringOwnerOf(ids.get(2)));
+    }
+
+    @Test
+    void placementWrapsAroundTheRing() {
+        overload(4, 0);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+
+        assertEquals(ip(1), ring.ownerOf(ids.get(4)));
+        assertEquals(ip(1), ring.ownerOf(ids.get(4) + 1));
+        assertEquals(ip(1), ring.ownerOf(ids.get(0)));
+    }
+
+    @Test
+    void everyNodeOverloadedFallsBackToTheRingOwner() {
+        overload(0, 1, 2, 3, 4);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+        for (int k = 0; k < ids.size(); k++) {
+            assertEquals(ip(k), ring.ownerOf(ids.get(k)));
+        }
+    }
+
+    @Test
+    void preferenceListPutsOverloadedNodesLast() {
+        overload(1, 3);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+
+        assertEquals(List.of(ip(2), ip(4), ip(0)), ring.preferenceList(ids.get(1), 3));
+        // asking for more than the healthy nodes fills up with the overloaded ones, clockwise from the owner
+        assertEquals(List.of(ip(2), ip(4), ip(0), ip(3), ip(1)), ring.preferenceList(ids.get(1), 10));
+    }
+
+    @Test
+    void replicaSkipsOverloadedNodesUnlessNothingElseIsLeft() {
+        overload(3);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 1, 1);
+        assertEquals(ip(4), ring.replicaOf(ids.get(2)));
+
+        // node 3 is the only one left under the bound: it takes the file, the next node clockwise the copy
+        overload(0, 1, 2, 4);
+        ring = RingSnapshot.of(nodeMap, 1, 1);
+        assertEquals(ip(3), ring.ownerOf(ids.get(0)));
+        assertEquals(ip(4), ring.replicaOf(ids.get(0)));
+    }
+
+    @Test
+    void placementNeverLandsOnAnOverloadedNodeWithVirtualNodes() {
+        TreeMap<Long, Node> nodes = nodeMap(40);
+        Set<String> overloadedIps = new HashSet<>();
+        int i = 0;
+        for (Node node : nodes.values()) {
+            if (i++ % 3 == 0) {
+                node.setOverloaded(true);
+                overloadedIps.add(node.getIpAddress());
+            }
+        }
+        RingSnapshot ring = RingSnapshot.of(nodes, 16, 1);
+
+        Random random = new Random(3);
+        for (int n = 0; n < 10_000; n++) {
+            long hash = HashingUtil.generateHash("file-" + random.nextInt());
+            String owner = ring.ownerOf(hash);
+            assertFalse(overloadedIps.contains(owner));
+            if (!overloadedIps.contains(ring.ringOwnerOf(hash))) assertEquals(ring.ringOwnerOf(hash), owner);
+
+            List<String> preference = ring.preferenceList(hash, 3);
+            assertEquals(owner, preference.get(0));
+            assertEquals(3, new HashSet<>(preference).size());
+            preference.forEach(ip -> assertFalse(overloadedIps.contains(ip)));
+            assertNotEquals(owner, ring.replicaOf(hash));
+        }
+    }
+
+    @Test
+    void overloadedNodesSurviveTheWireForm() throws Exception {
+        overload(2);
+        RingSnapshot ring = RingSnapshot.of(nodeMap, 4, 9);
+        ObjectMapper json = new ObjectMapper();
+        Map<?, ?> compact = json.readValue(json.writeValueAsString(ring.toCompact()), Map.class);
+        RingSnapshot copy = RingSnapshot.fromCompact(compact);
+
+        assertEquals(9, copy.epoch());
+        assertEquals(Set.of(ids.get(2)), copy.overloaded());
+        assertEquals(ring.size(), copy.size());
+        for (long hash : ids) {
+            assertEquals(ring.ownerOf(hash), copy.ownerOf(hash));
+            assertEquals(ring.ringOwnerOf(hash), copy.ringOwnerOf(hash));
+            assertEquals(ring.preferenceList(hash, 3), copy.preferenceList(hash, 3));
+        }
+    }
+
+    private void overload(int... indexes) {
+        nodeMap.values().forEach(node -> node.setOverloaded(false));
+        for (int k : indexes) nodeMap.get(ids.get(k)).setOverloaded(true);
+    }
+
+    // addresses follow ring order, so ip(k) is the k-th node on the ring
+    private String ip(int k) {
+        return nodeMap.get(ids.get(k)).getIpAddress();
+    }
+
+    private static TreeMap<Long, Node> nodeMap(int nodes) {
+        TreeMap<Long, Node> map = new TreeMap<>();
+        for (int i = 0; map.size() < nodes; i++) {
+            String name = "node-" + i;
+            long hash = HashingUtil.generateHash(name);
+            if (map.containsKey(hash)) continue;
+            Node node = new Node();
+            node.setCurrentID(hash);
+            node.setNodeName(name);
+            map.put(hash, node);
+        }
+        int k = 0;
+        for (Node node : map.values()) node.setIpAddress("10.0.0." + ++k);
+        return map;
+    }
+}
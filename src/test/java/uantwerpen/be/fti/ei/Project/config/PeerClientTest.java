@@ -0,0 +1,86 @@
+package uantwerpen.be.fti.ei.Project.config;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PeerClientTest {
+    private static final String A = "http://10.0.0.1:8080";
+    private static final String B = "http://10.0.0.2:8080";
+    private static final String C = "http://10.0.0.3:8080";
+
+    private final RestTemplate rest = mock(RestTemplate.class);
+    private final PeerClient client = new PeerClient(rest);
+
+    @BeforeEach
+    void group() {
+        client.setFailoverGroup(List.of(A, B, C));
+    }
+
+    @Test
+    void movesOnToTheNextInstanceAndStaysThere() {
+        when(rest.getForObject(A + "/api/nodemap", String.class)).thenThrow(new ResourceAccessException("refused"));
+        when(rest.getForObject(B + "/api/nodemap", String.class)).thenReturn("from b");
+        when(rest.getForObject(B + "/api/files/x", String.class)).thenReturn("x on b");
+
+        assertEquals("from b", client.getForObject(A + "/api/nodemap", String.class));
+        // the next call starts at the instance that answered, whatever base the caller used
+        assertEquals("x on b", client.getForObject(A + "/api/files/x", String.class));
+        verify(rest, never()).getForObject(A + "/api/files/x", String.class);
+    }
+
+    @Test
+    void wrapsAroundTheGroup() {
+        when(rest.getForObject(A + "/api/ring", String.class))
+                .thenThrow(new ResourceAccessException("refused"))
+                .thenReturn("from a");
+        when(rest.getForObject(B + "/api/ring", String.class))
+                .thenReturn("from b")
+                .thenThrow(new ResourceAccessException("refused"));
+        when(rest.getForObject(C + "/api/ring", String.class)).thenThrow(new ResourceAccessException("refused"));
+
+        assertEquals("from b", client.getForObject(A + "/api/ring", String.class));
+        // b and c go down in turn: back to a
+        assertEquals("from a", client.getForObject(A + "/api/ring", String.class));
+        verify(rest, times(2)).getForObject(A + "/api/ring", String.class);
+    }
+
+    @Test
+    void throwsOnceNoInstanceAnswers() {
+        when(rest.getForObject(any(String.class), any(Class.class))).thenThrow(new ResourceAccessException("refused"));
+        assertThrows(ResourceAccessException.class, () -> client.getForObject(A + "/api/nodemap", String.class));
+    }
+
+    @Test
+    void anErrorResponseIsNotAFailover() {
+        // the instance is up and answered: retrying the write elsewhere could apply it twice
+        when(rest.postForObject(A + "/api/nodes", "n", String.class))
+                .thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
+
+        assertThrows(HttpServerErrorException.class, () -> client.postForObject(A + "/api/nodes", "n", String.class));
+        verify(rest, never()).postForObject(B + "/api/nodes", "n", String.class);
+    }
+
+    @Test
+    void urlsOutsideTheGroupGoStraightThrough() {
+        String node = "http://10.0.1.7:8081/api/bootstrap/state";
+        when(rest.getForObject(node, String.class)).thenThrow(new ResourceAccessException("refused"));
+
+        assertThrows(ResourceAccessException.class, () -> client.getForObject(node, String.class));
+        verify(rest, never()).getForObject(B + "/api/bootstrap/state", String.class);
+    }
+}
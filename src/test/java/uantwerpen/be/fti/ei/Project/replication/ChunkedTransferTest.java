@@ -0,0 +1,134 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkedTransferTest {
+    private static final int CHUNK = ChunkedTransfer.CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void roundTrip(boolean compress) throws IOException {
+        byte[] data = data(3 * CHUNK + 12_345);
+        Path source = Files.write(dir.resolve("source"), data);
+        Path target = dir.resolve("target");
+
+        Compression.Meter meter = receive(send(source, 0, compress), target, 0, data.length);
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertEquals(data.length, meter.rawBytes);
+        if (compress) assertTrue(meter.wireBytes < meter.rawBytes);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void resumeAfterPartialTransfer(boolean compress) throws IOException {
+        byte[] data = data(3 * CHUNK + 12_345);
+        Path source = Files.write(dir.resolve("source"), data);
+        Path target = dir.resolve("target");
+
+        // the connection drops halfway through the third chunk
+        byte[] wire = send(source, 0, compress);
+        byte[] cut = Arrays.copyOf(wire, wire.length * 5 / 8);
+        assertThrows(EOFException.class, () -> receive(cut, target, 0, data.length));
+
+        // only verified chunks were written, so the partial file is a prefix of the source
+        long partial = Files.size(target);
+        assertTrue(partial > 0 && partial % CHUNK == 0);
+        assertArrayEquals(Arrays.copyOf(data, (int) partial), Files.readAllBytes(target));
+
+        long offset = ChunkedTransfer.resumableOffset(partial, data.length);
+        assertEquals(partial, offset);
+        Compression.Meter meter = receive(send(source, offset, compress), target, offset, data.length);
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertEquals(data.length - offset, meter.rawBytes);
+    }
+
+    @Test
+    void stalePrefixIsDiscarded() throws IOException {
+        byte[] data = data(2 * CHUNK + 100);
+        Path source = Files.write(dir.resolve("source"), data);
+        byte[] stale = Arrays.copyOf(data, CHUNK);
+        stale[7] ^= 1;
+        Path target = Files.write(dir.resolve("target"), stale);
+
+        IOException e = assertThrows(IOException.class,
+                () -> receive(send(source, CHUNK, false), target, CHUNK, data.length));
+        assertTrue(e.getMessage().contains("digest"));
+        // truncated, so the retry starts over instead of resuming from the same bad prefix
+        assertEquals(0, Files.size(target));
+    }
+
+    @Test
+    void corruptChunkIsNeverWritten() throws IOException {
+        byte[] data = data(2 * CHUNK);
+        Path source = Files.write(dir.resolve("source"), data);
+        Path target = dir.resolve("target");
+
+        byte[] wire = send(source, 0, false);
+        // second chunk body: two 13-byte chunk headers and the first body before it
+        wire[2 * 13 + CHUNK + 5] ^= 1;
+        assertThrows(IOException.class, () -> receive(wire, target, 0, data.length));
+        assertEquals(CHUNK, Files.size(target));
+    }
+
+    @Test
+    void resumableOffsetIsChunkAligned() {
+        assertEquals(0, ChunkedTransfer.resumableOffset(CHUNK - 1, 10L * CHUNK));
+        assertEquals(2L * CHUNK, ChunkedTransfer.resumableOffset(2L * CHUNK + 17, 10L * CHUNK));
+        // never past the end of the file being sent
+        assertEquals(CHUNK + 5, ChunkedTransfer.resumableOffset(3L * CHUNK, CHUNK + 5));
+    }
+
+    // the stream and the channel share one sink, as the socket does in PeerConnectionPool
+    private static byte[] send(Path source, long offset, boolean compress) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(wire, 1 << 16));
+        try (FileChannel body = FileChannel.open(source, StandardOpenOption.READ)) {
+            ChunkedTransfer.send(body, body.size(), offset, compress, out, Channels.newChannel(wire));
+        }
+        out.flush();
+        return wire.toByteArray();
+    }
+
+    private static Compression.Meter receive(byte[] wire, Path target, long offset, long size) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ChunkedTransfer.receive(new DataInputStream(new ByteArrayInputStream(wire)), out, offset, size);
+        }
+    }
+
+    // half compressible text, half random, so both chunk encodings show up
+    private static byte[] data(int n) {
+        byte[] b = new byte[n];
+        new Random(7).nextBytes(b);
+        for (int i = 0; i < n / 2; i++) b[i] = (byte) ('a' + i % 23);
+        return b;
+    }
+}
@@ -0,0 +1,116 @@
+package uantwerpen.be.fti.ei.Project.replication;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaSyncTest {
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(42);
+
+    @Test
+    void identicalFileSendsNoLiterals() throws IOException {
+        byte[] old = bytes(200_000);
+        assertEquals(0, roundTrip(old, old));
+    }
+
+    @Test
+    void insertInTheMiddle() throws IOException {
+        byte[] old = bytes(200_000);
+        byte[] inserted = bytes(300);
+        byte[] updated = concat(Arrays.copyOf(old, 70_123), inserted, Arrays.copyOfRange(old, 70_123, old.length));
+        // the insert plus at most the block it landed in
+        assertTrue(roundTrip(old, updated) < inserted.length + 2L * blockSize(old));
+    }
+
+    @Test
+    void append() throws IOException {
+        byte[] old = bytes(150_000);
+        byte[] tail = bytes(5_000);
+        assertTrue(roundTrip(old, concat(old, tail)) <= tail.length + blockSize(old));
+    }
+
+    @Test
+    void truncation() throws IOException {
+        byte[] old = bytes(200_000);
+        // cut in the middle of a block: everything before it is copied
+        assertTrue(roundTrip(old, Arrays.copyOf(old, 123_457)) < blockSize(old));
+    }
+
+    @Test
+    void unchangedShortLastBlockIsCopied() throws IOException {
+        byte[] old = bytes(100_000 + 333);
+        assertTrue(old.length % blockSize(old) != 0);
+        byte[] updated = old.clone();
+        updated[10] ^= 1;
+        assertTrue(roundTrip(old, updated) <= blockSize(old));
+    }
+
+    @Test
+    void shortLastBlockOnlyMatchesAtTheEnd() throws IOException {
+        byte[] old = bytes(100_000 + 333);
+        int block = blockSize(old);
+        byte[] shortBlock = Arrays.copyOfRange(old, old.length - old.length % block, old.length);
+        // the replica's short last block shows up in the middle of the new file, followed by more data
+        byte[] updated = concat(Arrays.copyOf(old, 50 * block), shortBlock, bytes(2_000));
+        roundTrip(old, updated);
+    }
+
+    @Test
+    void emptyFiles() throws IOException {
+        byte[] old = bytes(100_000);
+        assertEquals(0, roundTrip(old, new byte[0]));
+        assertEquals(5_000, roundTrip(new byte[0], bytes(5_000)));
+    }
+
+    // runs the signature/delta/apply cycle through the wire format and checks the result; returns the literal bytes
+    private long roundTrip(byte[] old, byte[] updated) throws IOException {
+        Path basis = Files.write(dir.resolve("basis"), old);
+        Path source = Files.write(dir.resolve("source"), updated);
+        Path target = dir.resolve("target");
+
+        ByteArrayOutputStream sigBytes = new ByteArrayOutputStream();
+        DeltaSync.writeSignature(new DataOutputStream(sigBytes), DeltaSync.signature(basis, blockSize(old)));
+        DeltaSync.Signature sig = DeltaSync.readSignature(new DataInputStream(new ByteArrayInputStream(sigBytes.toByteArray())));
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long literal = DeltaSync.writeDelta(source, sig, new DataOutputStream(delta));
+        long written = DeltaSync.applyDelta(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())),
+                basis, sig.blockSize(), target);
+
+        assertEquals(updated.length, written);
+        assertArrayEquals(updated, Files.readAllBytes(target));
+        return literal;
+    }
+
+    private static int blockSize(byte[] old) {
+        return DeltaSync.blockSizeFor(old.length);
+    }
+
+    private byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.writeBytes(p);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package uantwerpen.be.fti.ei.Project.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MutationLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayStopsAtATornTail() throws IOException {
+        write(0, "a", "b", "c");
+        // the crash hit in the middle of the fourth record
+        Files.writeString(lastSegment(), "{\"seq\":4,\"op\":\"ADD_FILE\",\"ip\":\"10.0.", StandardOpenOption.APPEND);
+
+        List<MutationLog.Entry> replayed = new ArrayList<>();
+        assertEquals(3, MutationLog.replay(dir, 0, replayed::add));
+        assertEquals(List.of("a", "b", "c"), files(replayed));
+    }
+
+    @Test
+    void restartAfterATornTailContinuesInANewSegment() throws IOException {
+        write(0, "a", "b");
+        Files.writeString(lastSegment(), "{\"seq\":3,\"op\":\"ADD_", StandardOpenOption.APPEND);
+
+        long last = MutationLog.replay(dir, 0, e -> {});
+        write(last, "c", "d");
+
+        List<MutationLog.Entry> replayed = new ArrayList<>();
+        assertEquals(4, MutationLog.replay(dir, 0, replayed::add));
+        assertEquals(List.of("a", "b", "c", "d"), files(replayed));
+        assertEquals(List.of(1L, 2L, 3L, 4L), replayed.stream().map(e -> e.seq).toList());
+    }
+
+    @Test
+    void replaySkipsWhatTheSnapshotCovers() throws IOException {
+        // the segments survived a crash between writing the snapshot at seq 3 and deleting them
+        write(0, "a", "b", "c", "d", "e");
+
+        List<MutationLog.Entry> replayed = new ArrayList<>();
+        assertEquals(5, MutationLog.replay(dir, 3, replayed::add));
+        assertEquals(List.of("d", "e"), files(replayed));
+    }
+
+    @Test
+    void replayWithNothingAfterTheSnapshotKeepsItsSeq() throws IOException {
+        write(0, "a", "b");
+        assertEquals(7, MutationLog.replay(dir, 7, e -> {}));
+        assertEquals(0, MutationLog.replay(dir.resolve("missing"), 0, e -> {}));
+    }
+
+    private void write(long lastSeq, String... files) throws IOException {
+        MutationLog log = new MutationLog(dir, lastSeq);
+        for (String f : files) log.append(MutationLog.Entry.addFile("10.0.0.1", f, true));
+        log.close();
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> segments = Files.list(dir)) {
+            return segments.sorted().reduce((a, b) -> b).orElseThrow();
+        }
+    }
+
+    private static List<String> files(List<MutationLog.Entry> entries) {
+        return entries.stream().map(e -> e.file).toList();
+    }
+}